@@ -29,6 +29,68 @@ public class ApplicationSettings {
 
 	private static int s_tree_length_size = 1000;//2000;
 
+	private static int s_tree_chars_size = 1024 * 1024;
+
+	private static int s_tree_stream_interval_ms = 0;
+
+	private static boolean s_event_collapse_enabled = false;
+
+	private static String s_sender_wait_strategy = "blocking";
+
+	private static int s_sender_batch_size = 256;
+
+	private static int s_sender_batch_bytes = 64 * 1024;
+
+	private static int s_sender_batch_micros = 2000;
+
+	private static String s_codec = "NT1";
+
+	private static int s_sender_connections = 1;
+
+	private static String s_sender_sharding = "hash";
+
+	private static int s_connect_timeout_ms = 1000;
+
+	private static int s_reconnect_backoff_min_ms = 100;
+
+	private static int s_reconnect_backoff_max_ms = 10000;
+
+	private static boolean s_spill_enabled = false;
+
+	private static int s_spill_max_mb = 256;
+
+	private static int s_spill_replay_rate = 1000;
+
+	private static String s_compression = "none";
+
+	private static int s_compression_level = 0;
+
+	private static boolean s_netty_epoll = true;
+
+	private static boolean s_netty_tcp_nodelay = true;
+
+	private static int s_netty_send_buffer = 0;
+
+	private static int s_netty_write_buffer_low = 1024 * 1024;
+
+	private static int s_netty_write_buffer_high = 4 * 1024 * 1024;
+
+	private static String s_netty_allocator = "pooled";
+
+	private static boolean s_message_pool_enabled = false;
+
+	private static boolean s_message_pool_debug = false;
+
+	private static int s_sampling_trees_per_second = 0;
+
+	private static int s_sampling_min_per_key = 1;
+
+	private static boolean s_tail_sampling_enabled = false;
+
+	private static int s_tail_sampling_window_ms = 500;
+
+	private static int s_tail_sampling_capacity = 4096;
+
 	static {
 		InputStream in = null;
 
@@ -54,6 +116,192 @@ public class ApplicationSettings {
 				if (treeMaxLength != null) {
 					s_tree_length_size = Integer.parseInt(treeMaxLength);
 				}
+
+				String treeMaxChars = prop.getProperty("cat.tree.max.chars");
+
+				if (treeMaxChars != null) {
+					s_tree_chars_size = Integer.parseInt(treeMaxChars.trim());
+				}
+
+				String treeStreamInterval = prop.getProperty("cat.tree.stream.interval.ms");
+
+				if (treeStreamInterval != null) {
+					s_tree_stream_interval_ms = Integer.parseInt(treeStreamInterval.trim());
+				}
+
+				String eventCollapseEnabled = prop.getProperty("cat.event.collapse.enabled");
+
+				if (eventCollapseEnabled != null) {
+					s_event_collapse_enabled = Boolean.parseBoolean(eventCollapseEnabled.trim());
+				}
+
+				String waitStrategy = prop.getProperty("cat.sender.wait.strategy");
+
+				if (waitStrategy != null) {
+					s_sender_wait_strategy = waitStrategy.trim();
+				}
+
+				String batchSize = prop.getProperty("cat.sender.batch.size");
+
+				if (batchSize != null) {
+					s_sender_batch_size = Integer.parseInt(batchSize);
+				}
+
+				String batchBytes = prop.getProperty("cat.sender.batch.bytes");
+
+				if (batchBytes != null) {
+					s_sender_batch_bytes = Integer.parseInt(batchBytes);
+				}
+
+				String batchMicros = prop.getProperty("cat.sender.batch.micros");
+
+				if (batchMicros != null) {
+					s_sender_batch_micros = Integer.parseInt(batchMicros);
+				}
+
+				String codec = prop.getProperty("cat.codec");
+
+				if (codec != null) {
+					s_codec = codec.trim();
+				}
+
+				String connections = prop.getProperty("cat.sender.connections");
+
+				if (connections != null) {
+					s_sender_connections = Integer.parseInt(connections.trim());
+				}
+
+				String sharding = prop.getProperty("cat.sender.sharding");
+
+				if (sharding != null) {
+					s_sender_sharding = sharding.trim();
+				}
+
+				String connectTimeout = prop.getProperty("cat.connect.timeout.ms");
+
+				if (connectTimeout != null) {
+					s_connect_timeout_ms = Integer.parseInt(connectTimeout.trim());
+				}
+
+				String backoffMin = prop.getProperty("cat.reconnect.backoff.min.ms");
+
+				if (backoffMin != null) {
+					s_reconnect_backoff_min_ms = Integer.parseInt(backoffMin.trim());
+				}
+
+				String backoffMax = prop.getProperty("cat.reconnect.backoff.max.ms");
+
+				if (backoffMax != null) {
+					s_reconnect_backoff_max_ms = Integer.parseInt(backoffMax.trim());
+				}
+
+				String spillEnabled = prop.getProperty("cat.spill.enabled");
+
+				if (spillEnabled != null) {
+					s_spill_enabled = Boolean.parseBoolean(spillEnabled.trim());
+				}
+
+				String spillMaxMb = prop.getProperty("cat.spill.max.mb");
+
+				if (spillMaxMb != null) {
+					s_spill_max_mb = Integer.parseInt(spillMaxMb.trim());
+				}
+
+				String spillReplayRate = prop.getProperty("cat.spill.replay.rate");
+
+				if (spillReplayRate != null) {
+					s_spill_replay_rate = Integer.parseInt(spillReplayRate.trim());
+				}
+
+				String compression = prop.getProperty("cat.compression");
+
+				if (compression != null) {
+					s_compression = compression.trim();
+				}
+
+				String compressionLevel = prop.getProperty("cat.compression.level");
+
+				if (compressionLevel != null) {
+					s_compression_level = Integer.parseInt(compressionLevel);
+				}
+
+				String epoll = prop.getProperty("cat.netty.epoll");
+
+				if (epoll != null) {
+					s_netty_epoll = Boolean.parseBoolean(epoll.trim());
+				}
+
+				String tcpNoDelay = prop.getProperty("cat.netty.tcp.nodelay");
+
+				if (tcpNoDelay != null) {
+					s_netty_tcp_nodelay = Boolean.parseBoolean(tcpNoDelay.trim());
+				}
+
+				String sendBuffer = prop.getProperty("cat.netty.sndbuf");
+
+				if (sendBuffer != null) {
+					s_netty_send_buffer = Integer.parseInt(sendBuffer.trim());
+				}
+
+				String writeBufferLow = prop.getProperty("cat.netty.write.buffer.low");
+
+				if (writeBufferLow != null) {
+					s_netty_write_buffer_low = Integer.parseInt(writeBufferLow.trim());
+				}
+
+				String writeBufferHigh = prop.getProperty("cat.netty.write.buffer.high");
+
+				if (writeBufferHigh != null) {
+					s_netty_write_buffer_high = Integer.parseInt(writeBufferHigh.trim());
+				}
+
+				String allocator = prop.getProperty("cat.netty.allocator");
+
+				if (allocator != null) {
+					s_netty_allocator = allocator.trim();
+				}
+
+				String messagePoolEnabled = prop.getProperty("cat.message.pool.enabled");
+
+				if (messagePoolEnabled != null) {
+					s_message_pool_enabled = Boolean.parseBoolean(messagePoolEnabled.trim());
+				}
+
+				String messagePoolDebug = prop.getProperty("cat.message.pool.debug");
+
+				if (messagePoolDebug != null) {
+					s_message_pool_debug = Boolean.parseBoolean(messagePoolDebug.trim());
+				}
+
+				String samplingTreesPerSecond = prop.getProperty("cat.sampling.trees.per.second");
+
+				if (samplingTreesPerSecond != null) {
+					s_sampling_trees_per_second = Integer.parseInt(samplingTreesPerSecond.trim());
+				}
+
+				String samplingMinPerKey = prop.getProperty("cat.sampling.min.per.key");
+
+				if (samplingMinPerKey != null) {
+					s_sampling_min_per_key = Integer.parseInt(samplingMinPerKey.trim());
+				}
+
+				String tailSamplingEnabled = prop.getProperty("cat.tail.sampling.enabled");
+
+				if (tailSamplingEnabled != null) {
+					s_tail_sampling_enabled = Boolean.parseBoolean(tailSamplingEnabled.trim());
+				}
+
+				String tailSamplingWindow = prop.getProperty("cat.tail.sampling.window.ms");
+
+				if (tailSamplingWindow != null) {
+					s_tail_sampling_window_ms = Integer.parseInt(tailSamplingWindow.trim());
+				}
+
+				String tailSamplingCapacity = prop.getProperty("cat.tail.sampling.capacity");
+
+				if (tailSamplingCapacity != null) {
+					s_tail_sampling_capacity = Integer.parseInt(tailSamplingCapacity.trim());
+				}
 			}
 		} catch (Exception e) {
 			// ingore
@@ -74,4 +322,206 @@ public class ApplicationSettings {
 	public static int getTreeLengthLimit() {
 		return s_tree_length_size;
 	}
+
+	/**
+		* the limit counts the UTF-16 chars of type, name, status and data plus a fixed overhead per message, so the
+		* encoded tree is up to three times larger when the strings are not ASCII
+		*
+		* @return estimated size of a tree in chars before it is truncated and flushed, 0 to limit by length only
+		*/
+	public static int getTreeCharsLimit() {
+		return s_tree_chars_size;
+	}
+
+	/**
+		* @return milliseconds after which the completed children of an open root transaction are sent as a part of the
+		* tree, 0 to keep them until the root ends or a tree limit is reached
+		*/
+	public static int getTreeStreamIntervalMs() {
+		return s_tree_stream_interval_ms;
+	}
+
+	/**
+		* @return true to merge successive events of the same type and name under a transaction into one batch event
+		*/
+	public static boolean isEventCollapseEnabled() {
+		return s_event_collapse_enabled;
+	}
+
+	/**
+		* @return one of blocking, yielding or busy-spin
+		*/
+	public static String getSenderWaitStrategy() {
+		return s_sender_wait_strategy;
+	}
+
+	/**
+		* @return max number of trees written to the channel before one flush, 1 means flush every tree
+		*/
+	public static int getSenderBatchSize() {
+		return s_sender_batch_size;
+	}
+
+	public static int getSenderBatchBytes() {
+		return s_sender_batch_bytes;
+	}
+
+	public static int getSenderBatchMicros() {
+		return s_sender_batch_micros;
+	}
+
+	/**
+		* @return wire format of message trees, NT1 or NT2, the collector must support NT2 before it is turned on
+		*/
+	public static String getCodec() {
+		return s_codec;
+	}
+
+	/**
+		* @return number of connections kept open across the router list, 1 means only the active server is used
+		*/
+	public static int getSenderConnections() {
+		return s_sender_connections;
+	}
+
+	/**
+		* @return how trees are spread over the connections, hash of message id or least-pending bytes
+		*/
+	public static String getSenderSharding() {
+		return s_sender_sharding;
+	}
+
+	public static int getConnectTimeoutMillis() {
+		return s_connect_timeout_ms;
+	}
+
+	/**
+		* @return first delay before connecting again when no server is reachable, doubled on each failure
+		*/
+	public static int getReconnectBackoffMinMillis() {
+		return s_reconnect_backoff_min_ms;
+	}
+
+	public static int getReconnectBackoffMaxMillis() {
+		return s_reconnect_backoff_max_ms;
+	}
+
+	/**
+		* @return true to spill trees to disk under cat home when the send queue is full
+		*/
+	public static boolean isSpillEnabled() {
+		return s_spill_enabled;
+	}
+
+	public static int getSpillMaxMb() {
+		return s_spill_max_mb;
+	}
+
+	/**
+		* @return max number of spilled trees replayed per second
+		*/
+	public static int getSpillReplayRate() {
+		return s_spill_replay_rate;
+	}
+
+	/**
+		* @return compression of the client channel, one of none, lz4, zstd or deflate
+		*/
+	public static String getCompression() {
+		return s_compression;
+	}
+
+	/**
+		* @return compression level, 0 means the default level of the codec
+		*/
+	public static int getCompressionLevel() {
+		return s_compression_level;
+	}
+
+	/**
+		* @return true to use the native epoll transport when it is available, nio is used otherwise
+		*/
+	public static boolean isNettyEpoll() {
+		return s_netty_epoll;
+	}
+
+	public static boolean isNettyTcpNoDelay() {
+		return s_netty_tcp_nodelay;
+	}
+
+	/**
+		* @return SO_SNDBUF of the client channel, 0 means the os default
+		*/
+	public static int getNettySendBuffer() {
+		return s_netty_send_buffer;
+	}
+
+	public static int getNettyWriteBufferLow() {
+		return s_netty_write_buffer_low;
+	}
+
+	/**
+		* @return pending bytes above which the channel turns unwritable and the sender stops writing
+		*/
+	public static int getNettyWriteBufferHigh() {
+		return s_netty_write_buffer_high;
+	}
+
+	/**
+		* @return one of pooled, unpooled or default
+		*/
+	public static String getNettyAllocator() {
+		return s_netty_allocator;
+	}
+
+	/**
+		* @return true to recycle transactions, events and trees once they are sent to the server
+		*/
+	public static boolean isMessagePoolEnabled() {
+		return s_message_pool_enabled;
+	}
+
+	/**
+		* @return true to keep recycled messages out of the pool, report any later use of them and any pooled message that
+		* is collected without being recycled
+		*/
+	public static boolean isMessagePoolDebug() {
+		return s_message_pool_debug;
+	}
+
+	/**
+		* @return budget of trees sent per second, split over the root type and name, 0 to sample by the ratio of the
+		* client config
+		*/
+	public static int getSamplingTreesPerSecond() {
+		return s_sampling_trees_per_second;
+	}
+
+	/**
+		* @return trees per second a type and name can always send under rate based sampling
+		*/
+	public static int getSamplingMinPerKey() {
+		return s_sampling_min_per_key;
+	}
+
+	/**
+		* @return true to hold sampled out trees for a while and keep them if their trace turns out slow or failed
+		*/
+	public static boolean isTailSamplingEnabled() {
+		return s_tail_sampling_enabled;
+	}
+
+	/**
+		* @return milliseconds a tree is held before the tail sampling decision
+		*/
+	public static int getTailSamplingWindowMs() {
+		return s_tail_sampling_window_ms;
+	}
+
+	/**
+		* @return max number of trees held by tail sampling, the oldest is decided early when it is full
+		*/
+	public static int getTailSamplingCapacity() {
+		return s_tail_sampling_capacity;
+	}
 }
@@ -18,6 +18,8 @@ import org.springframework.stereotype.Component;
 import javax.annotation.PostConstruct;
 import java.text.MessageFormat;
 import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.locks.LockSupport;
 
 /**
@@ -66,6 +68,28 @@ public class Cat {
 		s_instance = this;
 		s_init = true;
 	}
+	/**
+		* capture the message context of current thread, restore it in another thread with
+		* {@link MessageContext#restore()} or run tasks wrapped by {@link MessageContext#wrap(Runnable)}
+		*/
+	public static MessageContext captureContext() {
+		return Cat.getManager().captureContext();
+	}
+
+	/**
+		* @return executor running each task in the message context of the thread submitting it
+		*/
+	public static Executor wrap(Executor executor) {
+		return new ContextExecutor(executor);
+	}
+
+	/**
+		* @return executor service running each task in the message context of the thread submitting it
+		*/
+	public static ExecutorService wrap(ExecutorService executor) {
+		return new ContextExecutorService(executor);
+	}
+
 	public static String createMessageId() {
 		return Cat.getProducer().createMessageId();
 	}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.analyzer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+	* Aggregated data of one interval, the aggregators swap two buffers so that a snapshot loses no increment.
+	* <p>
+	* A writer enters the current buffer before it looks up and updates data, and checks that the buffer is still current
+	* afterwards, otherwise it leaves and retries with the new one. Once a buffer is swapped out, the snapshot waits for
+	* the writers that are still in it, so its counters are final when they are read.
+	*/
+final class AggregateBuffer<T> {
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, T>> m_data = new ConcurrentHashMap<String, ConcurrentHashMap<String, T>>();
+
+	private LongAdder m_writers = new LongAdder();
+
+	public void awaitWriters() {
+		while (m_writers.sum() != 0) {
+			Thread.yield();
+		}
+	}
+
+	public void enter() {
+		m_writers.increment();
+	}
+
+	public void exit() {
+		m_writers.decrement();
+	}
+
+	public ConcurrentHashMap<String, ConcurrentHashMap<String, T>> getData() {
+		return m_data;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.analyzer;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+	* Duration counts kept in a fixed array, with the same buckets as {@link DurationComputer#computeDuration(int)}.
+	* <p>
+	* A record is an O(1) index computation and an increment, it neither boxes nor allocates.
+	*/
+public class DurationHistogram {
+	private static final int[] KEYS = buildKeys();
+
+	private AtomicIntegerArray m_counts = new AtomicIntegerArray(KEYS.length);
+
+	private static int[] buildKeys() {
+		int[] keys = new int[238];
+		int index = 0;
+
+		for (int i = 1; i < 20; i++) {
+			keys[index++] = i;
+		}
+		for (int i = 20; i < 200; i += 5) {
+			keys[index++] = i;
+		}
+		for (int i = 200; i < 500; i += 20) {
+			keys[index++] = i;
+		}
+		for (int i = 500; i < 2000; i += 50) {
+			keys[index++] = i;
+		}
+		for (int i = 2000; i < 20000; i += 500) {
+			keys[index++] = i;
+		}
+		for (int i = 20000; i < 1000000; i += 10000) {
+			keys[index++] = i;
+		}
+		keys[index++] = 1048576;
+		keys[index++] = 2097152;
+		keys[index++] = 3600000;
+		keys[index] = 4194304;
+		return keys;
+	}
+
+	/**
+		* @return index of the bucket of the duration, whose key is what {@link DurationComputer} computes
+		*/
+	static int indexOf(int duration) {
+		if (duration < 20) {
+			return duration < 1 ? 0 : duration - 1;
+		} else if (duration < 200) {
+			return 19 + (duration - 20) / 5;
+		} else if (duration < 500) {
+			return 55 + (duration - 200) / 20;
+		} else if (duration < 2000) {
+			return 70 + (duration - 500) / 50;
+		} else if (duration < 20000) {
+			return 100 + (duration - 2000) / 500;
+		} else if (duration < 1000000) {
+			return 136 + (duration - 20000) / 10000;
+		} else if (duration <= 1048576) {
+			return 234;
+		} else if (duration <= 2097152) {
+			return 235;
+		} else if (duration > 3600000) {
+			return 236; // capped at one hour
+		} else {
+			return 237;
+		}
+	}
+
+	static int keyOf(int index) {
+		return KEYS[index];
+	}
+
+	/**
+		* @return key of the bucket the duration is counted in
+		*/
+	public int record(int duration) {
+		int index = indexOf(duration);
+
+		m_counts.incrementAndGet(index);
+		return KEYS[index];
+	}
+
+	public void reset() {
+		for (int i = 0; i < KEYS.length; i++) {
+			m_counts.set(i, 0);
+		}
+	}
+
+	/**
+		* @return non empty buckets as key,count pairs split by '|', in the format of the batch transaction line
+		*/
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		boolean first = true;
+
+		for (int i = 0; i < KEYS.length; i++) {
+			int count = m_counts.get(i);
+
+			if (count > 0) {
+				if (first) {
+					first = false;
+				} else {
+					sb.append('|');
+				}
+				sb.append(KEYS[i]).append(',').append(count);
+			}
+		}
+
+		return sb.toString();
+	}
+}
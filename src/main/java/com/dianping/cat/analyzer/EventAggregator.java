@@ -24,15 +24,18 @@ import com.dianping.cat.message.Event;
 import com.dianping.cat.message.Transaction;
 import com.dianping.cat.message.spi.MessageTree;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class EventAggregator {
 
 	private static EventAggregator s_instance = new EventAggregator();
 
-	private volatile ConcurrentHashMap<String, ConcurrentHashMap<String, EventData>> m_events = new ConcurrentHashMap<String, ConcurrentHashMap<String, EventData>>();
+	private volatile AggregateBuffer<EventData> m_current = new AggregateBuffer<EventData>();
+
+	private AggregateBuffer<EventData> m_standby = new AggregateBuffer<EventData>();
 
 	public static EventAggregator getInstance() {
 		return s_instance;
@@ -42,18 +45,32 @@ public class EventAggregator {
 		return new EventData(type, name);
 	}
 
-	public ConcurrentHashMap<String, ConcurrentHashMap<String, EventData>> getAndResetEvents() {
-		ConcurrentHashMap<String, ConcurrentHashMap<String, EventData>> cloned = m_events;
-
-		m_events = new ConcurrentHashMap<String, ConcurrentHashMap<String, EventData>>();
+	private AggregateBuffer<EventData> enter() {
+		while (true) {
+			AggregateBuffer<EventData> buffer = m_current;
 
-		for (Map.Entry<String, ConcurrentHashMap<String, EventData>> entry : cloned.entrySet()) {
-			String type = entry.getKey();
+			buffer.enter();
 
-			m_events.putIfAbsent(type, new ConcurrentHashMap<String, EventData>());
+			if (buffer == m_current) {
+				return buffer;
+			}
+			buffer.exit();
 		}
+	}
+
+	/**
+		* swap the buffers and wait for the writers still in the old one, the returned data is valid until the next call
+		*/
+	public synchronized ConcurrentHashMap<String, ConcurrentHashMap<String, EventData>> getAndResetEvents() {
+		AggregateBuffer<EventData> last = m_current;
+		AggregateBuffer<EventData> next = m_standby;
 
-		return cloned;
+		reset(next.getData());
+		m_current = next;
+		m_standby = last;
+		last.awaitWriters();
+
+		return last.getData();
 	}
 
 	public String getDomain(MessageTree tree) {
@@ -61,20 +78,48 @@ public class EventAggregator {
 	}
 
 	public void logBatchEvent(String type, String name, int total, int fail) {
-		makeSureEventExist(type, name).add(total, fail);
+		AggregateBuffer<EventData> buffer = enter();
+
+		try {
+			makeSureEventExist(buffer, type, name).add(total, fail);
+		} finally {
+			buffer.exit();
+		}
 	}
 
 	public void logEvent(Event e) {
-		makeSureEventExist(e.getType(), e.getName()).add(e);
+		AggregateBuffer<EventData> buffer = enter();
+
+		try {
+			makeSureEventExist(buffer, e.getType(), e.getName()).add(e);
+		} finally {
+			buffer.exit();
+		}
 	}
 
-	private EventData makeSureEventExist(String type, String name) {
-		ConcurrentHashMap<String, EventData> item = m_events.get(type);
+	private void reset(ConcurrentHashMap<String, ConcurrentHashMap<String, EventData>> data) {
+		for (ConcurrentHashMap<String, EventData> item : data.values()) {
+			Iterator<EventData> it = item.values().iterator();
+
+			while (it.hasNext()) {
+				EventData value = it.next();
+
+				if (value.getCount() == 0) {
+					it.remove(); // idle for a whole interval
+				} else {
+					value.reset();
+				}
+			}
+		}
+	}
+
+	private EventData makeSureEventExist(AggregateBuffer<EventData> buffer, String type, String name) {
+		ConcurrentHashMap<String, EventData> item = buffer.getData().get(type);
 
 		if (null == item) {
 			item = new ConcurrentHashMap<String, EventData>();
 
-			ConcurrentHashMap<String, EventData> oldValue = m_events.putIfAbsent(type, item);
+			ConcurrentHashMap<String, EventData> oldValue = buffer.getData().putIfAbsent(type, item);
 
 			if (oldValue != null) {
 				item = oldValue;
@@ -120,11 +165,13 @@ public class EventAggregator {
 
 			for (Map<String, EventData> entry : events.values()) {
 				for (EventData data : entry.values()) {
-					if (data.getCount() > 0) {
+					int count = data.getCount();
+
+					if (count > 0) {
 						Event tmp = Cat.newEvent(data.getType(), data.getName());
 						StringBuilder sb = new StringBuilder(32);
 
-						sb.append(CatConstants.BATCH_FLAG).append(data.getCount()).append(CatConstants.SPLIT).append(data.getError());
+						sb.append(CatConstants.BATCH_FLAG).append(count).append(CatConstants.SPLIT).append(data.getError());
 						tmp.addData(sb.toString());
 						tmp.setSuccessStatus();
 						tmp.complete();
@@ -143,9 +190,9 @@ public class EventAggregator {
 
 		private String m_name;
 
-		private AtomicInteger m_count = new AtomicInteger();
+		private LongAdder m_count = new LongAdder();
 
-		private AtomicInteger m_error = new AtomicInteger();
+		private LongAdder m_error = new LongAdder();
 
 		public EventData(String type, String name) {
 			m_type = type;
@@ -153,26 +200,26 @@ public class EventAggregator {
 		}
 
 		public EventData add(Event e) {
-			m_count.incrementAndGet();
+			m_count.increment();
 
 			if (!e.isSuccess()) {
-				m_error.incrementAndGet();
+				m_error.increment();
 			}
 			return this;
 		}
 
 		public EventData add(int count, int fail) {
-			m_count.addAndGet(count);
-			m_error.addAndGet(fail);
+			m_count.add(count);
+			m_error.add(fail);
 			return this;
 		}
 
 		public int getCount() {
-			return m_count.get();
+			return m_count.intValue();
 		}
 
 		public int getError() {
-			return m_error.get();
+			return m_error.intValue();
 		}
 
 		public String getName() {
@@ -182,6 +229,11 @@ public class EventAggregator {
 		public String getType() {
 			return m_type;
 		}
+
+		void reset() {
+			m_count.reset();
+			m_error.reset();
+		}
 	}
 
 }
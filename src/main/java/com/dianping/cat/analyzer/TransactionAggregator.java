@@ -25,17 +25,19 @@ import com.dianping.cat.configuration.ProblemLongType;
 import com.dianping.cat.message.Transaction;
 import com.dianping.cat.message.spi.MessageTree;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TransactionAggregator {
 
 	private static TransactionAggregator s_instance = new TransactionAggregator();
 
-	private volatile ConcurrentHashMap<String, ConcurrentHashMap<String, TransactionData>> m_transactions = new ConcurrentHashMap<String, ConcurrentHashMap<String, TransactionData>>();
+	private volatile AggregateBuffer<TransactionData> m_current = new AggregateBuffer<TransactionData>();
+
+	private AggregateBuffer<TransactionData> m_standby = new AggregateBuffer<TransactionData>();
 
 	public static TransactionAggregator getInstance() {
 		return s_instance;
@@ -45,18 +47,32 @@ public class TransactionAggregator {
 		return new TransactionData(type, name);
 	}
 
-	public ConcurrentHashMap<String, ConcurrentHashMap<String, TransactionData>> getAndResetTransactions() {
-		ConcurrentHashMap<String, ConcurrentHashMap<String, TransactionData>> cloned = m_transactions;
-
-		m_transactions = new ConcurrentHashMap<String, ConcurrentHashMap<String, TransactionData>>();
+	private AggregateBuffer<TransactionData> enter() {
+		while (true) {
+			AggregateBuffer<TransactionData> buffer = m_current;
 
-		for (Entry<String, ConcurrentHashMap<String, TransactionData>> entry : cloned.entrySet()) {
-			String type = entry.getKey();
+			buffer.enter();
 
-			m_transactions.putIfAbsent(type, new ConcurrentHashMap<String, TransactionData>());
+			if (buffer == m_current) {
+				return buffer;
+			}
+			buffer.exit();
 		}
+	}
+
+	/**
+		* swap the buffers and wait for the writers still in the old one, the returned data is valid until the next call
+		*/
+	public synchronized ConcurrentHashMap<String, ConcurrentHashMap<String, TransactionData>> getAndResetTransactions() {
+		AggregateBuffer<TransactionData> last = m_current;
+		AggregateBuffer<TransactionData> next = m_standby;
 
-		return cloned;
+		reset(next.getData());
+		m_current = next;
+		m_standby = last;
+		last.awaitWriters();
+
+		return last.getData();
 	}
 
 	public String getDomain(MessageTree tree) {
@@ -64,20 +80,48 @@ public class TransactionAggregator {
 	}
 
 	public void logBatchTransaction(String type, String name, int count, int error, long sum) {
-		makeSureTransactionExist(type, name).add(count, error, sum);
+		AggregateBuffer<TransactionData> buffer = enter();
+
+		try {
+			makeSureTransactionExist(buffer, type, name).add(count, error, sum);
+		} finally {
+			buffer.exit();
+		}
 	}
 
 	public void logTransaction(Transaction t) {
-		makeSureTransactionExist(t.getType(), t.getName()).add(t);
+		AggregateBuffer<TransactionData> buffer = enter();
+
+		try {
+			makeSureTransactionExist(buffer, t.getType(), t.getName()).add(t);
+		} finally {
+			buffer.exit();
+		}
+	}
+
+	private void reset(ConcurrentHashMap<String, ConcurrentHashMap<String, TransactionData>> data) {
+		for (ConcurrentHashMap<String, TransactionData> item : data.values()) {
+			Iterator<TransactionData> it = item.values().iterator();
+
+			while (it.hasNext()) {
+				TransactionData value = it.next();
+
+				if (value.getCount() == 0) {
+					it.remove(); // idle for a whole interval
+				} else {
+					value.reset();
+				}
+			}
+		}
 	}
 
-	private TransactionData makeSureTransactionExist(String type, String name) {
-		ConcurrentHashMap<String, TransactionData> item = m_transactions.get(type);
+	private TransactionData makeSureTransactionExist(AggregateBuffer<TransactionData> buffer, String type, String name) {
+		ConcurrentHashMap<String, TransactionData> item = buffer.getData().get(type);
 
 		if (null == item) {
 			item = new ConcurrentHashMap<String, TransactionData>();
 
-			ConcurrentHashMap<String, TransactionData> oldValue = m_transactions.putIfAbsent(type, item);
+			ConcurrentHashMap<String, TransactionData> oldValue = buffer.getData().putIfAbsent(type, item);
 
 			if (oldValue != null) {
 				item = oldValue;
@@ -107,7 +151,7 @@ public class TransactionAggregator {
 
 		for (Map<String, TransactionData> entry : transactions.values()) {
 			for (TransactionData data : entry.values()) {
-				if (data.getCount().get() > 0) {
+				if (data.getCount() > 0) {
 					hasData = true;
 					break;
 				}
@@ -123,13 +167,16 @@ public class TransactionAggregator {
 
 			for (Map<String, TransactionData> entry : transactions.values()) {
 				for (TransactionData data : entry.values()) {
-					if (data.getCount().get() > 0) {
+					int count = data.getCount();
+
+					if (count > 0) {
 						Transaction tmp = Cat.newTransaction(data.getType(), data.getName());
 						StringBuilder sb = new StringBuilder(32);
 
-						sb.append(CatConstants.BATCH_FLAG).append(data.getCount().get()).append(CatConstants.SPLIT);
-						sb.append(data.getFail().get()).append(CatConstants.SPLIT);
-						sb.append(data.getSum().get()).append(CatConstants.SPLIT);
+						// every counter is read once, so the line stays consistent with itself
+						sb.append(CatConstants.BATCH_FLAG).append(count).append(CatConstants.SPLIT);
+						sb.append(data.getFail()).append(CatConstants.SPLIT);
+						sb.append(data.getSum()).append(CatConstants.SPLIT);
 						sb.append(data.getDurationString()).append(CatConstants.SPLIT).append(data.getLongDurationString());
 
 						tmp.addData(sb.toString());
@@ -172,15 +219,15 @@ public class TransactionAggregator {
 
 		private String m_name;
 
-		private AtomicInteger m_count = new AtomicInteger();
+		private LongAdder m_count = new LongAdder();
 
-		private AtomicInteger m_fail = new AtomicInteger();
+		private LongAdder m_fail = new LongAdder();
 
-		private AtomicLong m_sum = new AtomicLong();
+		private LongAdder m_sum = new LongAdder();
 
-		private ConcurrentHashMap<Integer, AtomicInteger> m_durations = new ConcurrentHashMap<Integer, AtomicInteger>();
+		private DurationHistogram m_durations = new DurationHistogram();
 
-		private ConcurrentHashMap<Integer, AtomicInteger> m_longDurations = new ConcurrentHashMap<Integer, AtomicInteger>();
+		private ConcurrentHashMap<Integer, LongAdder> m_longDurations = new ConcurrentHashMap<Integer, LongAdder>();
 
 		public TransactionData(String type, String name) {
 			m_type = type;
@@ -188,130 +235,109 @@ public class TransactionAggregator {
 		}
 
 		public TransactionData add(int count, int error, long sum) {
-			m_count.addAndGet(count);
-			m_sum.addAndGet(sum);
-			m_fail.addAndGet(error);
+			m_count.add(count);
+			m_sum.add(sum);
+			m_fail.add(error);
 
 			if (count == 1) {
-				int duration = DurationComputer.computeDuration((int) sum);
-				AtomicInteger durationCount = m_durations.get(duration);
-
-				if (durationCount == null) {
-					m_durations.put(duration, new AtomicInteger(1));
-				} else {
-					durationCount.incrementAndGet();
-				}
+				m_durations.record((int) sum);
 			}
 
 			return this;
 		}
 
 		public TransactionData add(Transaction t) {
-			m_count.incrementAndGet();
-			m_sum.getAndAdd(t.getDurationInMillis());
+			m_count.increment();
+			m_sum.add(t.getDurationInMillis());
 
 			if (!t.isSuccess()) {
-				m_fail.incrementAndGet();
+				m_fail.increment();
 			}
 
-			int duration = DurationComputer.computeDuration((int) t.getDurationInMillis());
-			AtomicInteger count = m_durations.get(duration);
-
-			if (count == null) {
-				count = new AtomicInteger(0);
-
-				AtomicInteger oldCount = m_durations.putIfAbsent(duration, count);
-
-				if (oldCount != null) {
-					count = oldCount;
-				}
-			}
-			count.incrementAndGet();
+			int duration = m_durations.record((int) t.getDurationInMillis());
 
 			int longDuration = checkAndGetLongThreshold(t.getType(), duration);
 
 			if (longDuration > 0) {
-				AtomicInteger longCount = m_longDurations.get(longDuration);
+				findOrCreateCounter(m_longDurations, longDuration).increment();
+			}
+			return this;
+		}
 
-				if (longCount == null) {
-					longCount = new AtomicInteger(0);
+		private LongAdder findOrCreateCounter(ConcurrentHashMap<Integer, LongAdder> counters, int key) {
+			LongAdder counter = counters.get(key);
 
-					AtomicInteger oldLongCount = m_longDurations.putIfAbsent(longDuration, longCount);
+			if (counter == null) {
+				counter = new LongAdder();
 
-					if (oldLongCount != null) {
-						longCount = oldLongCount;
-					}
+				LongAdder oldCounter = counters.putIfAbsent(key, counter);
+
+				if (oldCounter != null) {
+					counter = oldCounter;
 				}
-				longCount.incrementAndGet();
 			}
-			return this;
+			return counter;
 		}
 
-		public AtomicInteger getCount() {
-			return m_count;
+		public int getCount() {
+			return m_count.intValue();
 		}
 
-		public Map<Integer, AtomicInteger> getDurations() {
+		public DurationHistogram getDurations() {
 			return m_durations;
 		}
 
 		public String getDurationString() {
-			StringBuilder sb = new StringBuilder();
-			boolean first = true;
-
-			for (Entry<Integer, AtomicInteger> entry : m_durations.entrySet()) {
-				Integer key = entry.getKey();
-				AtomicInteger value = entry.getValue();
-
-				if (first) {
-					sb.append(key).append(',').append(value);
-					first = false;
-				} else {
-					sb.append('|').append(key).append(',').append(value);
-				}
-			}
-
-			return sb.toString();
+			return m_durations.toString();
 		}
 
-		public Map<Integer, AtomicInteger> getLongDurations() {
+		public Map<Integer, LongAdder> getLongDurations() {
 			return m_longDurations;
 		}
 
 		public String getLongDurationString() {
-			StringBuilder sb = new StringBuilder();
-			boolean first = true;
-
-			for (Entry<Integer, AtomicInteger> entry : m_longDurations.entrySet()) {
-				Integer key = entry.getKey();
-				AtomicInteger value = entry.getValue();
-
-				if (first) {
-					sb.append(key).append(',').append(value);
-					first = false;
-				} else {
-					sb.append('|').append(key).append(',').append(value);
-				}
-			}
-
-			return sb.toString();
+			return toString(m_longDurations);
 		}
 
-		public AtomicInteger getFail() {
-			return m_fail;
+		public int getFail() {
+			return m_fail.intValue();
 		}
 
 		public String getName() {
 			return m_name;
 		}
 
-		public AtomicLong getSum() {
-			return m_sum;
+		public long getSum() {
+			return m_sum.sum();
 		}
 
 		public String getType() {
 			return m_type;
 		}
+
+		void reset() {
+			m_count.reset();
+			m_fail.reset();
+			m_sum.reset();
+			m_durations.reset();
+			m_longDurations.clear();
+		}
+
+		private String toString(Map<Integer, LongAdder> counters) {
+			StringBuilder sb = new StringBuilder();
+			boolean first = true;
+
+			for (Entry<Integer, LongAdder> entry : counters.entrySet()) {
+				if (first) {
+					first = false;
+				} else {
+					sb.append('|');
+				}
+				sb.append(entry.getKey()).append(',').append(entry.getValue().sum());
+			}
+
+			return sb.toString();
+		}
 	}
 
 }
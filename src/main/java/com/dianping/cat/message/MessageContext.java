@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message;
+
+import com.dianping.cat.message.spi.MessageManager;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+	* Snapshot of the message context of one thread, used to follow asynchronous work into other threads.
+	* <p>
+	* Trees logged by a thread where the snapshot is restored get the captured tree as parent and share its root, without
+	* any RunAway event in the captured tree. If the thread already has an open transaction, for example a task run by the
+	* caller itself, restoring does nothing and messages are nested as usual.
+	* <p>
+	* Typical usage:
+	* <pre>
+	* MessageContext context = Cat.captureContext();
+	*
+	* executor.execute(context.wrap(runnable));
+	* </pre>
+	*/
+public final class MessageContext {
+	public static final MessageContext EMPTY = new MessageContext(null, null, null, null, null);
+
+	private final MessageManager m_manager;
+
+	private final String m_rootMessageId;
+
+	private final String m_parentMessageId;
+
+	private final String m_type;
+
+	private final String m_name;
+
+	public MessageContext(MessageManager manager, String rootMessageId, String parentMessageId, String type, String name) {
+		m_manager = manager;
+		m_rootMessageId = rootMessageId;
+		m_parentMessageId = parentMessageId;
+		m_type = type;
+		m_name = name;
+	}
+
+	/**
+		* @return name of the transaction open when the snapshot was captured
+		*/
+	public String getName() {
+		return m_name;
+	}
+
+	/**
+		* @return message id of the captured tree, null for an empty snapshot
+		*/
+	public String getParentMessageId() {
+		return m_parentMessageId;
+	}
+
+	public String getRootMessageId() {
+		return m_rootMessageId;
+	}
+
+	/**
+		* @return type of the transaction open when the snapshot was captured
+		*/
+	public String getType() {
+		return m_type;
+	}
+
+	public boolean isEmpty() {
+		return m_parentMessageId == null;
+	}
+
+	/**
+		* restore the snapshot in current thread until the returned scope is closed
+		*/
+	public Scope restore() {
+		if (m_manager == null) {
+			return Scope.NOOP;
+		} else {
+			return m_manager.restoreContext(this);
+		}
+	}
+
+	public <T> Callable<T> wrap(final Callable<T> callable) {
+		if (isEmpty()) {
+			return callable;
+		}
+
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				Scope scope = restore();
+
+				try {
+					return callable.call();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	public Runnable wrap(final Runnable runnable) {
+		if (isEmpty()) {
+			return runnable;
+		}
+
+		return new Runnable() {
+			@Override
+			public void run() {
+				Scope scope = restore();
+
+				try {
+					runnable.run();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	public <T> Supplier<T> wrap(final Supplier<T> supplier) {
+		if (isEmpty()) {
+			return supplier;
+		}
+
+		return new Supplier<T>() {
+			@Override
+			public T get() {
+				Scope scope = restore();
+
+				try {
+					return supplier.get();
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	public <T, R> Function<T, R> wrap(final Function<T, R> function) {
+		if (isEmpty()) {
+			return function;
+		}
+
+		return new Function<T, R>() {
+			@Override
+			public R apply(T t) {
+				Scope scope = restore();
+
+				try {
+					return function.apply(t);
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	public <T> Consumer<T> wrap(final Consumer<T> consumer) {
+		if (isEmpty()) {
+			return consumer;
+		}
+
+		return new Consumer<T>() {
+			@Override
+			public void accept(T t) {
+				Scope scope = restore();
+
+				try {
+					consumer.accept(t);
+				} finally {
+					scope.close();
+				}
+			}
+		};
+	}
+
+	/**
+		* A restored snapshot, closing it gives the thread its previous context back
+		*/
+	public interface Scope extends Closeable {
+		Scope NOOP = new Scope() {
+			@Override
+			public void close() {
+			}
+		};
+
+		@Override
+		void close();
+	}
+}
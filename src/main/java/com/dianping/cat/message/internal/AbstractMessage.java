@@ -38,14 +38,60 @@ public abstract class AbstractMessage implements Message {
 
 	private boolean m_completed;
 
+	private boolean m_recycled;
+
+	private MessageLeakDetector.Leak m_leak;
+
 	public AbstractMessage(String type, String name) {
 		m_type = String.valueOf(type);
 		m_name = String.valueOf(name);
 		m_timestampInMillis = MilliSecondTimer.currentTimeMillis();
 	}
 
+	/**
+		* reset a pooled message for its next use
+		*/
+	protected void reuse(String type, String name) {
+		m_status = "unset";
+		m_type = String.valueOf(type);
+		m_name = String.valueOf(name);
+		m_timestampInMillis = MilliSecondTimer.currentTimeMillis();
+		m_data = null;
+		m_completed = false;
+		m_recycled = false;
+		m_leak = MessagePool.track(this);
+	}
+
+	/**
+		* drop the references of a pooled message when it goes back to the pool
+		*
+		* @return false if the message was already recycled
+		*/
+	protected boolean markRecycled() {
+		if (m_recycled) {
+			MessagePool.onRecycledUse(this);
+			return false;
+		}
+		m_recycled = true;
+		m_data = null;
+
+		if (m_leak != null) {
+			m_leak.close();
+			m_leak = null;
+		}
+		return true;
+	}
+
+	protected void checkRecycled() {
+		if (m_recycled) {
+			MessagePool.onRecycledUse(this);
+		}
+	}
+
 	@Override
 	public void addData(String keyValuePairs) {
+		checkRecycled();
+
 		if (m_data == null) {
 			m_data = keyValuePairs;
 		} else if (m_data instanceof StringBuilder) {
@@ -61,6 +107,8 @@ public abstract class AbstractMessage implements Message {
 
 	@Override
 	public void addData(String key, Object value) {
+		checkRecycled();
+
 		if (m_data instanceof StringBuilder) {
 			((StringBuilder) m_data).append('&').append(key).append('=').append(value);
 		} else {
@@ -144,6 +192,7 @@ public abstract class AbstractMessage implements Message {
 
 	@Override
 	public void setStatus(String status) {
+		checkRecycled();
 		m_status = status;
 	}
 
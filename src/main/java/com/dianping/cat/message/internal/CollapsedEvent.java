@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.CatConstants;
+import com.dianping.cat.message.Message;
+
+/**
+	* successive events of the same type and name under one transaction, the timestamp is the one of the first event
+	* and the data is written in the batch format "@count;errors;last timestamp" when the tree is encoded.
+	*/
+class CollapsedEvent extends DefaultEvent {
+	private int m_count;
+
+	private int m_errors;
+
+	private long m_lastTimestamp;
+
+	CollapsedEvent(Message first) {
+		super(first.getType(), first.getName());
+
+		setTimestamp(first.getTimestamp());
+		setStatus(Message.SUCCESS);
+		setCompleted(true);
+		merge(first);
+	}
+
+	void merge(Message event) {
+		m_count++;
+		m_lastTimestamp = event.getTimestamp();
+
+		if (!event.isSuccess()) {
+			m_errors++;
+		}
+	}
+
+	@Override
+	public CharSequence getData() {
+		StringBuilder sb = new StringBuilder(32);
+
+		sb.append(CatConstants.BATCH_FLAG).append(m_count).append(CatConstants.SPLIT).append(m_errors);
+		sb.append(CatConstants.SPLIT).append(m_lastTimestamp);
+		return sb;
+	}
+}
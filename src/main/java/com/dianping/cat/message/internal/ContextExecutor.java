@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.Cat;
+
+import java.util.concurrent.Executor;
+
+/**
+	* Executor restoring the message context of the submitting thread in the task
+	*/
+public class ContextExecutor implements Executor {
+	private Executor m_executor;
+
+	public ContextExecutor(Executor executor) {
+		m_executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		m_executor.execute(Cat.captureContext().wrap(command));
+	}
+
+	@Override
+	public String toString() {
+		return "ContextExecutor[" + m_executor + "]";
+	}
+}
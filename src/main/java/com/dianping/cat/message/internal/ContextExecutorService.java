@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.MessageContext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+	* Executor service restoring the message context of the submitting thread in the task
+	*/
+public class ContextExecutorService extends ContextExecutor implements ExecutorService {
+	private ExecutorService m_executor;
+
+	public ContextExecutorService(ExecutorService executor) {
+		super(executor);
+		m_executor = executor;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return m_executor.awaitTermination(timeout, unit);
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+		return m_executor.invokeAll(wrap(tasks));
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+					throws InterruptedException {
+		return m_executor.invokeAll(wrap(tasks), timeout, unit);
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+		return m_executor.invokeAny(wrap(tasks));
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+					throws InterruptedException, ExecutionException, TimeoutException {
+		return m_executor.invokeAny(wrap(tasks), timeout, unit);
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return m_executor.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return m_executor.isTerminated();
+	}
+
+	@Override
+	public void shutdown() {
+		m_executor.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return m_executor.shutdownNow();
+	}
+
+	@Override
+	public <T> Future<T> submit(Callable<T> task) {
+		return m_executor.submit(Cat.captureContext().wrap(task));
+	}
+
+	@Override
+	public Future<?> submit(Runnable task) {
+		return m_executor.submit(Cat.captureContext().wrap(task));
+	}
+
+	@Override
+	public <T> Future<T> submit(Runnable task, T result) {
+		return m_executor.submit(Cat.captureContext().wrap(task), result);
+	}
+
+	@Override
+	public String toString() {
+		return "ContextExecutorService[" + m_executor + "]";
+	}
+
+	private <T> Collection<Callable<T>> wrap(Collection<? extends Callable<T>> tasks) {
+		MessageContext context = Cat.captureContext();
+		List<Callable<T>> wrapped = new ArrayList<Callable<T>>(tasks.size());
+
+		for (Callable<T> task : tasks) {
+			wrapped.add(context.wrap(task));
+		}
+		return wrapped;
+	}
+}
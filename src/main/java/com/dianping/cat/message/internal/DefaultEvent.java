@@ -20,10 +20,18 @@ package com.dianping.cat.message.internal;
 
 import com.dianping.cat.message.Event;
 import com.dianping.cat.message.spi.MessageManager;
+import io.netty.util.Recycler.Handle;
 
 public class DefaultEvent extends AbstractMessage implements Event {
 	private MessageManager m_manager;
 
+	private Handle<DefaultEvent> m_handle;
+
+	DefaultEvent(Handle<DefaultEvent> handle) {
+		super(null, null);
+		m_handle = handle;
+	}
+
 	public DefaultEvent(String type, String name) {
 		super(type, name);
 	}
@@ -36,10 +44,30 @@ public class DefaultEvent extends AbstractMessage implements Event {
 
 	@Override
 	public void complete() {
+		checkRecycled();
 		setCompleted(true);
 
 		if (m_manager != null) {
 			m_manager.add(this);
 		}
 	}
+
+	/**
+		* @return true if the event comes from the message pool
+		*/
+	boolean isPooled() {
+		return m_handle != null;
+	}
+
+	void recycle() {
+		if (m_handle != null && markRecycled()) {
+			m_manager = null;
+			MessagePool.recycle(this, m_handle);
+		}
+	}
+
+	void reuse(String type, String name, MessageManager manager) {
+		reuse(type, name);
+		m_manager = manager;
+	}
 }
@@ -26,6 +26,7 @@ import com.dianping.cat.configuration.NetworkInterfaceManager;
 import com.dianping.cat.configuration.client.entity.Domain;
 import com.dianping.cat.message.ForkedTransaction;
 import com.dianping.cat.message.Message;
+import com.dianping.cat.message.MessageContext;
 import com.dianping.cat.message.TaggedTransaction;
 import com.dianping.cat.message.Transaction;
 import com.dianping.cat.message.io.DefaultTransportManager;
@@ -41,7 +42,7 @@ import org.springframework.stereotype.Component;
 import javax.annotation.PostConstruct;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @Component
@@ -58,6 +59,8 @@ public class DefaultMessageManager  implements MessageManager{
 
 	private ThreadLocal<Context> m_context = new ThreadLocal<Context>();
 
+	private ThreadLocal<MessageContext> m_restored = new ThreadLocal<MessageContext>();
+
 	private long m_throttleTimes;
 
 	private Domain m_domain;
@@ -70,7 +73,7 @@ public class DefaultMessageManager  implements MessageManager{
 
 	private Map<String, TaggedTransaction> m_taggedTransactions;
 
-	private AtomicInteger m_sampleCount = new AtomicInteger();
+	private AtomicLong m_sampleCount = new AtomicLong();
 
 	@Override
 	public void add(Message message) {
@@ -100,6 +103,34 @@ public class DefaultMessageManager  implements MessageManager{
 		}
 	}
 
+	@Override
+	public MessageContext captureContext() {
+		Context ctx = m_context.get();
+
+		if (ctx != null) {
+			Transaction transaction = ctx.peekTransaction(this);
+
+			if (transaction != null) {
+				MessageTree tree = ctx.m_tree;
+				String messageId = tree.getMessageId();
+
+				if (messageId == null) {
+					messageId = nextMessageId();
+					tree.setMessageId(messageId);
+				}
+
+				String rootId = tree.getRootMessageId();
+
+				return new MessageContext(this, rootId != null ? rootId : messageId, messageId, transaction.getType(),
+								transaction.getName());
+			}
+		}
+
+		MessageContext restored = m_restored.get();
+
+		return restored != null ? restored : MessageContext.EMPTY;
+	}
+
 	@Override
 	public void end(Transaction transaction) {
 		Context ctx = getContext();
@@ -205,10 +236,13 @@ public class DefaultMessageManager  implements MessageManager{
 		return has;
 	}
 
+	/**
+		* hit when the count crosses the next multiple of 1 / sampleRatio, so that any ratio is kept exactly in the long run
+		*/
 	private boolean hitSample(double sampleRatio) {
-		int count = m_sampleCount.incrementAndGet();
+		long count = m_sampleCount.incrementAndGet();
 
-		return count % ((int) (1.0 / sampleRatio)) == 0;
+		return (long) (count * sampleRatio) != (long) ((count - 1) * sampleRatio);
 	}
 
 	@PostConstruct
@@ -279,6 +313,41 @@ public class DefaultMessageManager  implements MessageManager{
 		return messageIdFactory.getNextId();
 	}
 
+	@Override
+	public MessageContext.Scope restoreContext(MessageContext context) {
+		Context ctx = m_context.get();
+
+		if (context.isEmpty() || (ctx != null && !ctx.m_stack.isEmpty())) {
+			return MessageContext.Scope.NOOP; // already inside a tree of this thread
+		}
+
+		final MessageContext previous = m_restored.get();
+
+		m_restored.set(context);
+
+		if (ctx != null) {
+			ctx.link(context);
+		}
+
+		return new MessageContext.Scope() {
+			@Override
+			public void close() {
+				if (previous != null) {
+					m_restored.set(previous);
+				} else {
+					m_restored.remove();
+				}
+
+				Context current = m_context.get();
+
+				// leave nothing of the snapshot to the next task of a pooled thread
+				if (current != null && current.m_stack.isEmpty()) {
+					m_context.remove();
+				}
+			}
+		};
+	}
+
 	@Override
 	public void reset() {
 		// destroy current thread local data
@@ -287,10 +356,10 @@ public class DefaultMessageManager  implements MessageManager{
 		if (ctx != null) {
 			if (ctx.m_totalDurationInMicros == 0) {
 				ctx.m_stack.clear();
-				ctx.m_knownExceptions.clear();
+				ctx.clearKnownExceptions();
 				m_context.remove();
 			} else {
-				ctx.m_knownExceptions.clear();
+				ctx.clearKnownExceptions();
 			}
 
 			MessageTree tree = ctx.m_tree;
@@ -354,32 +423,38 @@ public class DefaultMessageManager  implements MessageManager{
 	class Context {
 		private MessageTree m_tree;
 
-		private Stack<Transaction> m_stack;
+		private TransactionStack m_stack;
 
 		private int m_length;
 
+		private int m_chars; // estimated size of the tree in chars
+
 		private boolean m_traceMode;
 
 		private long m_totalDurationInMicros; // for truncate message
 
-		private Set<Throwable> m_knownExceptions;
+		// compared by identity, a linear scan is cheaper than hashing for the few exceptions of one tree
+		private Throwable[] m_knownExceptions = new Throwable[4];
 
-		public Context(String domain, String hostName, String ipAddress) {
-			m_tree = new DefaultMessageTree();
-			m_stack = new Stack<Transaction>();
+		private int m_knownExceptionCount;
 
-			Thread thread = Thread.currentThread();
-			String groupName = thread.getThreadGroup().getName();
+		public Context(String domain, String hostName, String ipAddress) {
+			DefaultMessageTree tree = new DefaultMessageTree();
 
-			m_tree.setThreadGroupName(groupName);
-			m_tree.setThreadId(String.valueOf(thread.getId()));
-			m_tree.setThreadName(thread.getName());
+			tree.setThread(Thread.currentThread());
+			m_tree = tree;
+			m_stack = new TransactionStack();
 
 			m_tree.setDomain(domain);
 			m_tree.setHostName(hostName);
 			m_tree.setIpAddress(ipAddress);
 			m_length = 1;
-			m_knownExceptions = new HashSet<Throwable>();
+
+			MessageContext restored = m_restored.get();
+
+			if (restored != null) {
+				link(restored);
+			}
 		}
 
 		public void add(Message message) {
@@ -391,21 +466,106 @@ public class DefaultMessageManager  implements MessageManager{
 			} else {
 				Transaction parent = m_stack.peek();
 
-				addTransactionChild(message, parent);
+				if (!ApplicationSettings.isEventCollapseEnabled() || !collapse(message, parent)) {
+					addTransactionChild(message, parent);
+				}
 			}
 		}
 
+		/**
+			* merge the event into the last child of the transaction if it is an event of the same type and name, the
+			* data of the merged events is dropped, only the count, errors and last timestamp are kept.
+			*
+			* @return true if the event is merged
+			*/
+		private boolean collapse(Message message, Transaction transaction) {
+			if (message.getClass() == DefaultEvent.class) {
+				List<Message> children = transaction.getChildren();
+				int size = children.size();
+
+				if (size > 0) {
+					Message last = children.get(size - 1);
+
+					if (last.getType().equals(message.getType()) && last.getName().equals(message.getName())) {
+						if (last instanceof CollapsedEvent) {
+							((CollapsedEvent) last).merge(message);
+						} else if (last.getClass() == DefaultEvent.class) {
+							CollapsedEvent collapsed = new CollapsedEvent(last);
+
+							collapsed.merge(message);
+							children.set(size - 1, collapsed);
+							((DefaultEvent) last).recycle();
+						} else {
+							return false;
+						}
+
+						((DefaultEvent) message).recycle();
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private void link(MessageContext context) {
+			m_tree.setParentMessageId(context.getParentMessageId());
+			m_tree.setRootMessageId(context.getRootMessageId());
+		}
+
 		private void addTransactionChild(Message message, Transaction transaction) {
 			//3600s=1hour  x-x%3600
 			long treePeriod = trimToHour(m_tree.getMessage().getTimestamp());
 			long messagePeriod = trimToHour(message.getTimestamp() - 10 * 1000L); // 10 seconds extra time allowed
 
-			if (treePeriod < messagePeriod || m_length >= ApplicationSettings.getTreeLengthLimit()) {
+			if (treePeriod < messagePeriod || m_length >= ApplicationSettings.getTreeLengthLimit() || isOverCharsLimit()
+							|| isStreamDue(message.getTimestamp())) {
 				m_validator.truncateAndFlush(this, message.getTimestamp());
 			}
 
 			transaction.addChild(message);
 			m_length++;
+
+			if (ApplicationSettings.getTreeCharsLimit() > 0) {
+				m_chars += estimateChars(message);
+			}
+		}
+
+		/**
+			* streaming mode, the tree part is due when it is open longer than the stream interval, its timestamp is reset
+			* each time a part is flushed
+			*/
+		private boolean isStreamDue(long timestamp) {
+			int interval = ApplicationSettings.getTreeStreamIntervalMs();
+
+			return interval > 0 && timestamp - m_tree.getMessage().getTimestamp() >= interval;
+		}
+
+		private boolean isOverCharsLimit() {
+			int limit = ApplicationSettings.getTreeCharsLimit();
+
+			return limit > 0 && m_chars >= limit;
+		}
+
+		/**
+			* rough size of the message in the native codec, strings are counted in chars since counting their UTF-8
+			* bytes takes another pass over every string on the logging thread, transaction data is usually added after
+			* it starts and not counted
+			*/
+		private int estimateChars(Message message) {
+			int chars = length(message.getType()) + length(message.getName()) + length(message.getStatus());
+
+			// classes are checked first, a failed instanceof against an interface scans every interface of the class
+			if (message instanceof DefaultTransaction) {
+				return chars + 24;
+			} else if (message instanceof AbstractMessage) {
+				return chars + ((AbstractMessage) message).getData().length() + 12;
+			} else {
+				return chars + (message instanceof Transaction ? 24 : 12);
+			}
+		}
+
+		private int length(String str) {
+			return str == null ? 0 : str.length();
 		}
 
 		private void adjustForTruncatedTransaction(Transaction root) {
@@ -433,14 +593,23 @@ public class DefaultMessageManager  implements MessageManager{
 				if (transaction == current) {
 					m_validator.validate(m_stack.isEmpty() ? null : m_stack.peek(), current);
 				} else {
-					while (transaction != current && !m_stack.empty()) {
+					while (transaction != current && !m_stack.isEmpty()) {
 						m_validator.validate(m_stack.peek(), current);
 
 						current = m_stack.pop();
 					}
 				}
 
-				if (m_stack.isEmpty()) {
+				if (!m_stack.isEmpty()) {
+					if (ApplicationSettings.getTreeStreamIntervalMs() > 0 && m_length > m_stack.size()) {
+						long now = System.currentTimeMillis();
+
+						if (isStreamDue(now)) {
+							// send the completed children now instead of keeping them until the root ends
+							m_validator.truncateAndFlush(this, now);
+						}
+					}
+				} else {
 					MessageTree tree = m_tree.copy();
 
 					m_tree.setMessageId(null);
@@ -471,24 +640,26 @@ public class DefaultMessageManager  implements MessageManager{
 		}
 
 		public Transaction peekTransaction(DefaultMessageManager defaultMessageManager) {
-			if (m_stack.isEmpty()) {
-				return null;
-			} else {
-				return m_stack.peek();
-			}
+			return m_stack.peek();
 		}
 
 		public boolean shouldLog(Throwable e) {
-			if (m_knownExceptions == null) {
-				m_knownExceptions = new HashSet<Throwable>();
+			for (int i = 0; i < m_knownExceptionCount; i++) {
+				if (m_knownExceptions[i] == e) {
+					return false;
+				}
 			}
 
-			if (m_knownExceptions.contains(e)) {
-				return false;
-			} else {
-				m_knownExceptions.add(e);
-				return true;
+			if (m_knownExceptionCount == m_knownExceptions.length) {
+				m_knownExceptions = Arrays.copyOf(m_knownExceptions, m_knownExceptionCount * 2);
 			}
+			m_knownExceptions[m_knownExceptionCount++] = e;
+			return true;
+		}
+
+		private void clearKnownExceptions() {
+			Arrays.fill(m_knownExceptions, 0, m_knownExceptionCount, null);
+			m_knownExceptionCount = 0;
 		}
 
 		public void start(Transaction transaction, boolean forked) {
@@ -547,14 +718,20 @@ public class DefaultMessageManager  implements MessageManager{
 			transaction.complete();
 		}
 
-		private void migrateMessage(Stack<Transaction> stack, Transaction source, Transaction target, int level) {
-			Transaction current = level < stack.size() ? stack.get(level) : null;
-			boolean shouldKeep = false;
+		/**
+			* move the children of source to target, the open transaction of the next level is replaced by a copy holding
+			* its completed children and stays in source for the next part of the tree.
+			*/
+		private void migrateMessage(TransactionStack stack, DefaultTransaction source, DefaultTransaction target, int level) {
+			DefaultTransaction current = level < stack.size() ? (DefaultTransaction) stack.get(level) : null;
+
+			source.moveChildrenTo(target);
 
-			for (Message child : source.getChildren()) {
-				if (child != current) {
-					target.addChild(child);
-				} else {
+			if (current != null) {
+				List<Message> children = target.getChildren();
+				int index = children.lastIndexOf(current); // the open transaction is the last child in general
+
+				if (index >= 0) {
 					DefaultTransaction cloned = new DefaultTransaction(current.getType(), current.getName(),
 											DefaultMessageManager.this);
 
@@ -563,22 +740,16 @@ public class DefaultMessageManager  implements MessageManager{
 					cloned.addData(current.getData().toString());
 					cloned.setStatus(Message.SUCCESS);
 
-					target.addChild(cloned);
+					children.set(index, cloned);
 					migrateMessage(stack, current, cloned, level + 1);
-					shouldKeep = true;
+					source.addChild(current); // add it back
 				}
 			}
-
-			source.getChildren().clear();
-
-			if (shouldKeep) { // add it back
-				source.addChild(current);
-			}
 		}
 
 		public void truncateAndFlush(Context ctx, long timestamp) {
 			MessageTree tree = ctx.m_tree;
-			Stack<Transaction> stack = ctx.m_stack;
+			TransactionStack stack = ctx.m_stack;
 			Message message = tree.getMessage();
 
 			if (message instanceof DefaultTransaction) {
@@ -624,6 +795,11 @@ public class DefaultMessageManager  implements MessageManager{
 				ctx.m_tree.setRootMessageId(rootId != null ? rootId : id);
 
 				ctx.m_length = stack.size();
+				ctx.m_chars = 0;
+
+				for (int i = stack.size() - 1; i >= 0; i--) {
+					ctx.m_chars += ctx.estimateChars(stack.get(i));
+				}
 				ctx.m_totalDurationInMicros = ctx.m_totalDurationInMicros + target.getDurationInMicros();
 
 				flush(t, false);
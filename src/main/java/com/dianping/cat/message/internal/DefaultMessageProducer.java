@@ -183,7 +183,7 @@ public class DefaultMessageProducer implements MessageProducer {
 			defaultMessageManager.setup();
 		}
 
-		return new DefaultEvent(type, name, defaultMessageManager);
+		return MessagePool.newEvent(type, name, defaultMessageManager);
 	}
 
 	public Event newEvent(Transaction parent, String type, String name) {
@@ -191,7 +191,7 @@ public class DefaultMessageProducer implements MessageProducer {
 			defaultMessageManager.setup();
 		}
 
-		DefaultEvent event = new DefaultEvent(type, name);
+		DefaultEvent event = MessagePool.newEvent(type, name, null);
 
 		parent.addChild(event);
 		return event;
@@ -277,7 +277,7 @@ public class DefaultMessageProducer implements MessageProducer {
 			defaultMessageManager.setup();
 		}
 
-		DefaultTransaction transaction = new DefaultTransaction(type, name, defaultMessageManager);
+		DefaultTransaction transaction = MessagePool.newTransaction(type, name, defaultMessageManager);
 
 		defaultMessageManager.start(transaction, false);
 		return transaction;
@@ -289,7 +289,7 @@ public class DefaultMessageProducer implements MessageProducer {
 			defaultMessageManager.setup();
 		}
 
-		DefaultTransaction transaction = new DefaultTransaction(type, name, defaultMessageManager);
+		DefaultTransaction transaction = MessagePool.newTransaction(type, name, defaultMessageManager);
 
 		parent.addChild(transaction);
 		transaction.setStandalone(false);
@@ -22,6 +22,7 @@ import com.dianping.cat.Cat;
 import com.dianping.cat.message.Message;
 import com.dianping.cat.message.Transaction;
 import com.dianping.cat.message.spi.MessageManager;
+import io.netty.util.Recycler.Handle;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -38,6 +39,13 @@ public class DefaultTransaction extends AbstractMessage implements Transaction {
 
 	private long m_durationStart;
 
+	private Handle<DefaultTransaction> m_handle;
+
+	DefaultTransaction(Handle<DefaultTransaction> handle) {
+		super(null, null);
+		m_handle = handle;
+	}
+
 	public DefaultTransaction(String type, String name) {
 		super(type, name);
 		m_durationStart = System.nanoTime();
@@ -53,6 +61,8 @@ public class DefaultTransaction extends AbstractMessage implements Transaction {
 
 	@Override
 	public DefaultTransaction addChild(Message message) {
+		checkRecycled();
+
 		if (m_children == null) {
 			m_children = new ArrayList<Message>();
 		}
@@ -67,6 +77,8 @@ public class DefaultTransaction extends AbstractMessage implements Transaction {
 
 	@Override
 	public void complete() {
+		checkRecycled();
+
 		try {
 			if (isCompleted()) {
 				// complete() was called more than once
@@ -136,6 +148,43 @@ public class DefaultTransaction extends AbstractMessage implements Transaction {
 		m_durationInMicro = duration * 1000L;
 	}
 
+	/**
+		* @return true if the transaction comes from the message pool
+		*/
+	boolean isPooled() {
+		return m_handle != null;
+	}
+
+	/**
+		* hand the children over to a new transaction without copying them
+		*/
+	void moveChildrenTo(DefaultTransaction target) {
+		target.m_children = m_children;
+		m_children = null;
+	}
+
+	void recycle() {
+		if (m_handle != null && markRecycled()) {
+			if (m_children != null) {
+				if (m_children.size() > 64) {
+					m_children = null; // don't keep a large list in the pool
+				} else {
+					m_children.clear();
+				}
+			}
+			m_manager = null;
+			MessagePool.recycle(this, m_handle);
+		}
+	}
+
+	void reuse(String type, String name, MessageManager manager) {
+		reuse(type, name);
+		m_durationInMicro = -1;
+		m_manager = manager;
+		m_standalone = true;
+		m_durationStart = System.nanoTime();
+	}
+
 	protected MessageManager getManager() {
 		return m_manager;
 	}
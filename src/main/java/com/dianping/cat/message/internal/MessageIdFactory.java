@@ -21,6 +21,7 @@ package com.dianping.cat.message.internal;
 import com.dianping.cat.Cat;
 import com.dianping.cat.configuration.NetworkInterfaceManager;
 import com.dianping.cat.util.CleanupHelper;
+import com.dianping.cat.util.Threads;
 import com.site.helper.Splitters;
 import org.springframework.stereotype.Component;
 
@@ -32,6 +33,7 @@ import java.lang.management.RuntimeMXBean;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -43,9 +45,26 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class MessageIdFactory {
 	public static final long HOUR = 3600 * 1000L;
 
+	private static final int BLOCK_SIZE = 64;
+
+	private static final long MARK_INTERVAL = 1000L;
+
+	private static final long FORCE_INTERVAL = 60 * 1000L;
+
+	private static final int SLOT_OFFSET = 16;
+
+	private static final int SLOT_SIZE = 128;
+
 	private volatile long m_timestamp = getTimestamp();
 
-	private volatile AtomicInteger m_index = new AtomicInteger(0);
+	private volatile Counter m_counter = new Counter(m_timestamp, 0);
+
+	private ThreadLocal<Block> m_block = new ThreadLocal<Block>() {
+		@Override
+		protected Block initialValue() {
+			return new Block();
+		}
+	};
 
 	private String m_domain = "UNKNOWN";
 
@@ -64,15 +83,30 @@ public class MessageIdFactory {
 	private String m_idPrefix;
 
 	private String m_idPrefixOfMultiMode;
+
+	private volatile boolean m_rolling;
+
+	private Map<String, Slot> m_slots = new HashMap<String, Slot>();
+
+	private long m_lastHour = -1;
+
+	private int m_lastIndex = -1;
+
+	private long m_lastForce;
 	
-	public void close() {
+	/**
+		* stop the mark and rolling tasks and unmap the mark file, synchronized with saveMark and forceMark so that
+		* they never touch the buffer after it is unmapped
+		*/
+	public synchronized void close() {
+		m_rolling = false;
+
 		try {
 			saveMark();
+			forceMark();
 			if( m_byteBuffer != null ) {
-				synchronized (m_byteBuffer) {
-					CleanupHelper.cleanup(m_byteBuffer);
-					m_byteBuffer = null;
-				}
+				CleanupHelper.cleanup(m_byteBuffer);
+				m_byteBuffer = null;
 			}
 			if( m_markChannel != null ) {
 				m_markChannel.close();
@@ -116,42 +150,61 @@ public class MessageIdFactory {
 		return mark;
 	}
 
-	public String getNextId() {
-		long timestamp = getTimestamp();
+	/**
+		* format a binary message id to its text form, domain-ipHex-hour-index
+		*
+		* @param prefix domain and ip part of the id ending with '-', see {@link #getIdPrefix()}
+		* @param id     binary id, see {@link #getNextIdValue()}
+		*/
+	public static String format(String prefix, long id) {
+		StringBuilder sb = new StringBuilder(prefix.length() + 24);
 
-		if (timestamp != m_timestamp) {
-			synchronized (this) {
-				if (timestamp != m_timestamp) {
-					resetCounter(timestamp);
-				}
-			}
-		}
-
-		int index = m_index.getAndIncrement();
-		StringBuilder sb = new StringBuilder(64);
+		sb.append(prefix).append(id >>> 32).append('-').append((int) id);
+		return sb.toString();
+	}
 
+	/**
+		* @return domain and ip part of the ids of current domain, shared by all ids
+		*/
+	public String getIdPrefix() {
 		if (Cat.isMultiInstanceEnable()) {
-			sb.append(m_idPrefixOfMultiMode).append(index);
+			return m_idPrefixOfMultiMode;
 		} else {
-			sb.append(m_idPrefix).append(index);
+			return m_idPrefix;
 		}
+	}
 
-		return sb.toString();
+	public String getNextId() {
+		return format(getIdPrefix(), getNextIdValue());
+	}
+
+	/**
+		* next id of current domain in binary form, hour in the high 32 bits and index in the low 32 bits. The hour is
+		* switched by the rolling task, so no clock is read here.
+		* <p>
+		* Each thread reserves a block of indexes from the shared counter and hands them out locally, the shared counter
+		* is always above every index in use, so the mark file saved from it still covers all of them.
+		*/
+	public long getNextIdValue() {
+		Counter counter = m_counter;
+		Block block = m_block.get();
+
+		if (block.m_counter != counter || block.m_next >= block.m_end) {
+			int start = counter.m_index.getAndAdd(BLOCK_SIZE);
+
+			block.m_counter = counter;
+			block.m_next = start;
+			block.m_end = start + BLOCK_SIZE;
+		}
+
+		return (counter.m_hour << 32) | (block.m_next++ & 0xFFFFFFFFL);
 	}
 
 	public String getNextId(String domain) {
 		if (domain.equals(m_domain)) {
 			return getNextId();
 		} else {
-			long timestamp = getTimestamp();
-
-			if (timestamp != m_timestamp) {
-				synchronized (this) {
-					if (timestamp != m_timestamp) {
-						resetCounter(timestamp);
-					}
-				}
-			}
+			long timestamp = m_timestamp;
 
 			AtomicInteger value = m_map.get(domain);
 
@@ -235,8 +288,10 @@ public class MessageIdFactory {
 		m_markFile = new RandomAccessFile(mark, "rw");
 		m_markChannel = m_markFile.getChannel();
 		m_byteBuffer = m_markChannel.map(MapMode.READ_WRITE, 0, 1024 * 1024L);
-		m_idPrefix = initIdPrefix(getTimestamp(), false);
-		m_idPrefixOfMultiMode = initIdPrefix(getTimestamp(), true);
+		m_slots.clear();
+		m_lastHour = -1;
+		m_idPrefix = initIdPrefix(false);
+		m_idPrefixOfMultiMode = initIdPrefix(true);
 
 		if (m_byteBuffer.limit() > 0) {
 			try {
@@ -244,21 +299,34 @@ public class MessageIdFactory {
 				int index = m_byteBuffer.getInt();
 
 				if (lastTimestamp == m_timestamp) { // for same hour
-					m_index = new AtomicInteger(index + 1000);
+					m_counter = new Counter(m_timestamp, index + 1000);
 
 					int mapLength = m_byteBuffer.getInt();
 
-					for (int i = 0; i < mapLength; i++) {
-						int domainLength = m_byteBuffer.getInt();
-						byte[] domainArray = new byte[domainLength];
+					if (mapLength < 0) { // domains in fixed slots
+						for (int i = 0; i < -mapLength; i++) {
+							int offset = SLOT_OFFSET + i * SLOT_SIZE;
+							byte[] domainArray = new byte[m_byteBuffer.getInt(offset)];
+
+							m_byteBuffer.position(offset + 4);
+							m_byteBuffer.get(domainArray);
+							int value = m_byteBuffer.getInt(offset + SLOT_SIZE - 4);
+
+							m_map.put(new String(domainArray), new AtomicInteger(value + 1000));
+						}
+					} else {
+						for (int i = 0; i < mapLength; i++) {
+							int domainLength = m_byteBuffer.getInt();
+							byte[] domainArray = new byte[domainLength];
 
-						m_byteBuffer.get(domainArray);
-						int value = m_byteBuffer.getInt();
+							m_byteBuffer.get(domainArray);
+							int value = m_byteBuffer.getInt();
 
-						m_map.put(new String(domainArray), new AtomicInteger(value + 1000));
+							m_map.put(new String(domainArray), new AtomicInteger(value + 1000));
+						}
 					}
 				} else {
-					m_index = new AtomicInteger(0);
+					m_counter = new Counter(m_timestamp, 0);
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -272,6 +340,13 @@ public class MessageIdFactory {
 		}
 
 		saveMark();
+		forceMark();
+
+		if (!m_rolling) {
+			m_rolling = true;
+			Threads.forGroup("cat").start(new RollingTask());
+			Threads.forGroup("cat").start(new MarkTask());
+		}
 		if( !shutdownHookOn ) {
 			synchronized (this) {
 				if( !shutdownHookOn ) {
@@ -288,54 +363,94 @@ public class MessageIdFactory {
 	}
 	private volatile boolean shutdownHookOn;
 
-	private String initIdPrefix(long timestamp, boolean multiMode) {
+	private String initIdPrefix(boolean multiMode) {
 		StringBuilder sb = new StringBuilder(m_domain.length() + 32);
 
 		if (multiMode) {
-			sb.append(m_domain).append('-').append(m_ipAddress).append(".").append(m_processID).append('-').append(timestamp)
-									.append('-');
+			sb.append(m_domain).append('-').append(m_ipAddress).append(".").append(m_processID).append('-');
 		} else {
-			sb.append(m_domain).append('-').append(m_ipAddress).append('-').append(timestamp).append('-');
+			sb.append(m_domain).append('-').append(m_ipAddress).append('-');
 		}
 
 		return sb.toString();
 	}
 
-	private void resetCounter(long timestamp) {
-		m_index.set(0);
-
-		for (Entry<String, AtomicInteger> entry : m_map.entrySet()) {
-			entry.getValue().set(0);
-		}
+	private synchronized void resetCounter(long timestamp) {
+		if (timestamp != m_timestamp) {
+			m_counter = new Counter(timestamp, 0);
 
-		m_idPrefix = initIdPrefix(timestamp, false);
-		m_idPrefixOfMultiMode = initIdPrefix(timestamp, true);
+			for (Entry<String, AtomicInteger> entry : m_map.entrySet()) {
+				entry.getValue().set(0);
+			}
 
-		m_timestamp = timestamp;
+			m_timestamp = timestamp;
+		}
 	}
+
 	public int getIndex() {
-		return m_index.get();
+		return m_counter.m_index.get();
 	}
 
+	/**
+		* force the mark file to disk, saveMark only writes to the page cache
+		*/
+	public synchronized void forceMark() {
+		if (m_byteBuffer == null) {
+			return;
+		}
+		try {
+			m_byteBuffer.force();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			// ignore it
+		}
+		m_lastForce = System.currentTimeMillis();
+	}
+
+	/**
+		* write the counters changed since last save into their fixed slots of the mark file, the domain name of a slot
+		* is written only once when the slot is assigned
+		*/
 	public synchronized void saveMark() {
 		if( m_byteBuffer == null ) {
 			return;
 		}
 		try {
-			m_byteBuffer.rewind();
-			m_byteBuffer.putLong(m_timestamp);
-			m_byteBuffer.putInt(m_index.get());
-			m_byteBuffer.putInt(m_map.size());
+			Counter counter = m_counter;
+			int index = counter.m_index.get();
+
+			if (counter.m_hour != m_lastHour || index != m_lastIndex) {
+				m_byteBuffer.putLong(0, counter.m_hour);
+				m_byteBuffer.putInt(8, index);
+				m_lastHour = counter.m_hour;
+				m_lastIndex = index;
+			}
 
 			for (Entry<String, AtomicInteger> entry : m_map.entrySet()) {
-				byte[] bytes = entry.getKey().toString().getBytes();
+				Slot slot = m_slots.get(entry.getKey());
+				int value = entry.getValue().get();
 
-				m_byteBuffer.putInt(bytes.length);
-				m_byteBuffer.put(bytes);
-				m_byteBuffer.putInt(entry.getValue().get());
-			}
+				if (slot == null) {
+					byte[] bytes = entry.getKey().getBytes();
+					int offset = SLOT_OFFSET + m_slots.size() * SLOT_SIZE;
 
-			m_byteBuffer.force();
+					if (bytes.length > SLOT_SIZE - 8 || offset + SLOT_SIZE > m_byteBuffer.capacity()) {
+						continue;
+					}
+
+					slot = new Slot(offset);
+					m_byteBuffer.putInt(offset, bytes.length);
+					m_byteBuffer.position(offset + 4);
+					m_byteBuffer.put(bytes);
+					m_slots.put(entry.getKey(), slot);
+					m_byteBuffer.putInt(12, -m_slots.size());
+				}
+
+				if (value != slot.m_value) {
+					m_byteBuffer.putInt(slot.m_offset + SLOT_SIZE - 4, value);
+					slot.m_value = value;
+				}
+			}
 		} catch (Throwable e) {
 			e.printStackTrace();
 			// ignore it
@@ -350,4 +465,92 @@ public class MessageIdFactory {
 		m_ipAddress = ipAddress;
 	}
 
+	private static class Block {
+		private Counter m_counter;
+
+		private int m_next;
+
+		private int m_end;
+	}
+
+	private static class Slot {
+		private int m_offset;
+
+		private int m_value = -1;
+
+		public Slot(int offset) {
+			m_offset = offset;
+		}
+	}
+
+	private static class Counter {
+		private final long m_hour;
+
+		private final AtomicInteger m_index;
+
+		public Counter(long hour, int index) {
+			m_hour = hour;
+			m_index = new AtomicInteger(index);
+		}
+	}
+
+	/**
+		* save the mark every second and force it to disk at a coarser interval, off the sender and network threads
+		*/
+	private class MarkTask implements Threads.Task {
+
+		@Override
+		public String getName() {
+			return "cat-message-id-mark";
+		}
+
+		@Override
+		public void run() {
+			while (m_rolling) {
+				try {
+					Thread.sleep(MARK_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+				saveMark();
+
+				if (System.currentTimeMillis() - m_lastForce >= FORCE_INTERVAL) {
+					forceMark();
+				}
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			m_rolling = false;
+		}
+	}
+
+	/**
+		* switch the counter to the new hour at each hour boundary
+		*/
+	private class RollingTask implements Threads.Task {
+
+		@Override
+		public String getName() {
+			return "cat-message-id-rolling";
+		}
+
+		@Override
+		public void run() {
+			while (m_rolling) {
+				try {
+					Thread.sleep(HOUR - System.currentTimeMillis() % HOUR + 1);
+				} catch (InterruptedException e) {
+					break;
+				}
+				resetCounter(getTimestamp());
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			m_rolling = false;
+		}
+	}
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+	* Finds pooled objects that are collected without being given back to the pool, the same way as netty's
+	* ResourceLeakDetector.
+	* <p>
+	* Every tracked object keeps a weak reference with the stack of the caller that took it from the pool. The reference is
+	* closed when the object is recycled, so a reference that still is open once the object is collected is a leak. Leaks
+	* are reported with that stack on the next call of {@link #track(Object)}.
+	*/
+@Slf4j
+public class MessageLeakDetector {
+	private final ReferenceQueue<Object> m_queue = new ReferenceQueue<Object>();
+
+	private final Set<Leak> m_open = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+
+	/**
+		* @return the tracker to close when the object goes back to the pool
+		*/
+	public Leak track(Object object) {
+		report();
+
+		Leak leak = new Leak(object, m_queue);
+
+		m_open.add(leak);
+		return leak;
+	}
+
+	/**
+		* @return number of leaks reported by this call
+		*/
+	int report() {
+		int count = 0;
+
+		while (true) {
+			Leak leak = (Leak) m_queue.poll();
+
+			if (leak == null) {
+				break;
+			} else if (m_open.remove(leak)) {
+				log.error(leak.m_type + " is collected without being recycled, it was taken from the pool at",
+								leak.m_stack);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+		* @return number of tracked objects that are neither recycled nor reported yet
+		*/
+	int getOpenCount() {
+		return m_open.size();
+	}
+
+	public class Leak extends WeakReference<Object> {
+		private final String m_type;
+
+		private final Throwable m_stack;
+
+		private Leak(Object object, ReferenceQueue<Object> queue) {
+			super(object, queue);
+
+			m_type = object.getClass().getSimpleName();
+			m_stack = new Throwable("taken from the pool");
+		}
+
+		/**
+			* stop tracking the object, it is given back to the pool
+			*/
+		public void close() {
+			m_open.remove(this);
+			clear();
+		}
+	}
+}
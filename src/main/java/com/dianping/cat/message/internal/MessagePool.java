@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.ApplicationSettings;
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.spi.MessageManager;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+
+/**
+	* Opt-in pools of transactions, events and trees, enabled by cat.message.pool.enabled.
+	* <p>
+	* Messages are taken from the pool of the application thread and given back by the sender thread once the tree is
+	* encoded, so a message must not be touched after its root transaction is completed. With cat.message.pool.debug
+	* recycled objects are never handed out again, any later change of them is logged with the stack of the caller, and
+	* any pooled object that is collected without being recycled is logged with the stack where it was taken from the pool
+	* (see {@link MessageLeakDetector}).
+	*/
+@Slf4j
+public class MessagePool {
+	public static final int CAPACITY = 4096;
+
+	public static final int DELAYED_QUEUES = Runtime.getRuntime().availableProcessors() * 2;
+
+	private static final boolean s_enabled = ApplicationSettings.isMessagePoolEnabled();
+
+	private static final boolean s_debug = ApplicationSettings.isMessagePoolDebug();
+
+	private static final MessageLeakDetector s_leaks = new MessageLeakDetector();
+
+	// ratio 1 keeps every object given back by the sender thread, the default only keeps one out of eight
+	private static final Recycler<DefaultTransaction> s_transactions = new Recycler<DefaultTransaction>(CAPACITY, 1, 1,
+					DELAYED_QUEUES, 1) {
+		@Override
+		protected DefaultTransaction newObject(Handle<DefaultTransaction> handle) {
+			return new DefaultTransaction(handle);
+		}
+	};
+
+	private static final Recycler<DefaultEvent> s_events = new Recycler<DefaultEvent>(CAPACITY, 1, 1, DELAYED_QUEUES, 1) {
+		@Override
+		protected DefaultEvent newObject(Handle<DefaultEvent> handle) {
+			return new DefaultEvent(handle);
+		}
+	};
+
+	public static boolean isEnabled() {
+		return s_enabled;
+	}
+
+	public static boolean isDebug() {
+		return s_debug;
+	}
+
+	/**
+		* @return the leak tracker of a pooled object in debug mode, null otherwise
+		*/
+	public static MessageLeakDetector.Leak track(Object object) {
+		return s_debug ? s_leaks.track(object) : null;
+	}
+
+	public static DefaultTransaction newTransaction(String type, String name, MessageManager manager) {
+		if (s_enabled) {
+			DefaultTransaction transaction = s_transactions.get();
+
+			transaction.reuse(type, name, manager);
+			return transaction;
+		} else {
+			return new DefaultTransaction(type, name, manager);
+		}
+	}
+
+	public static DefaultEvent newEvent(String type, String name, MessageManager manager) {
+		if (s_enabled) {
+			DefaultEvent event = s_events.get();
+
+			event.reuse(type, name, manager);
+			return event;
+		} else {
+			return new DefaultEvent(type, name, manager);
+		}
+	}
+
+	/**
+		* give the tree and all its pooled messages back to the pool, must be called at most once, after the tree is
+		* encoded
+		*/
+	public static void recycle(MessageTree tree) {
+		if (s_enabled && tree instanceof DefaultMessageTree) {
+			Message message = tree.getMessage();
+
+			if (((DefaultMessageTree) tree).recycle() && message != null) {
+				recycle(message);
+			}
+		}
+	}
+
+	private static void recycle(Message message) {
+		if (message instanceof DefaultTransaction) {
+			DefaultTransaction transaction = (DefaultTransaction) message;
+
+			if (transaction.isPooled()) {
+				List<Message> children = transaction.getChildren();
+
+				for (int i = 0; i < children.size(); i++) {
+					recycle(children.get(i));
+				}
+				transaction.recycle();
+			}
+		} else if (message instanceof DefaultEvent) {
+			((DefaultEvent) message).recycle();
+		}
+	}
+
+	static <T> void recycle(T object, Handle<T> handle) {
+		if (!s_debug) {
+			handle.recycle(object);
+		}
+	}
+
+	public static void onRecycledUse(Object object) {
+		if (s_debug) {
+			log.error("Recycled " + object.getClass().getSimpleName() + " is used again",
+							new IllegalStateException("use after recycle"));
+		}
+	}
+}
@@ -20,6 +20,7 @@ package com.dianping.cat.message.internal;
 
 import com.dianping.cat.configuration.ClientConfigManager;
 import com.dianping.cat.message.Message;
+import com.dianping.cat.message.MessageContext;
 import com.dianping.cat.message.Transaction;
 import com.dianping.cat.message.spi.MessageManager;
 import com.dianping.cat.message.spi.MessageTree;
@@ -34,11 +35,21 @@ public class NullMessageManager implements MessageManager {
 	public void add(Message message) {
 	}
 
+	@Override
+	public MessageContext captureContext() {
+		return MessageContext.EMPTY;
+	}
+
 	@Override
 	public void end(Transaction transaction) {
 
 	}
 
+	@Override
+	public MessageContext.Scope restoreContext(MessageContext context) {
+		return MessageContext.Scope.NOOP;
+	}
+
 	@Override
 	public Transaction getPeekTransaction() {
 		return NullMessage.TRANSACTION;
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.message.Transaction;
+
+import java.util.Arrays;
+
+/**
+	* Transaction stack of one thread context, it is never shared so no method is synchronized
+	*/
+final class TransactionStack {
+	private Transaction[] m_elements = new Transaction[16];
+
+	private int m_size;
+
+	public void clear() {
+		Arrays.fill(m_elements, 0, m_size, null);
+		m_size = 0;
+	}
+
+	/**
+		* @param index 0 is the bottom of the stack, which is the root transaction
+		*/
+	public Transaction get(int index) {
+		if (index >= m_size) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		return m_elements[index];
+	}
+
+	public boolean isEmpty() {
+		return m_size == 0;
+	}
+
+	/**
+		* @return top of the stack, null if the stack is empty
+		*/
+	public Transaction peek() {
+		return m_size == 0 ? null : m_elements[m_size - 1];
+	}
+
+	/**
+		* @return top of the stack, null if the stack is empty
+		*/
+	public Transaction pop() {
+		if (m_size == 0) {
+			return null;
+		}
+
+		Transaction transaction = m_elements[--m_size];
+
+		m_elements[m_size] = null;
+		return transaction;
+	}
+
+	public void push(Transaction transaction) {
+		if (m_size == m_elements.length) {
+			m_elements = Arrays.copyOf(m_elements, m_size * 2);
+		}
+		m_elements[m_size++] = transaction;
+	}
+
+	public int size() {
+		return m_size;
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.status.StatusExtension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+	* Rate based sampling, enabled by cat.sampling.trees.per.second, which is the budget of trees sent per second.
+	* <p>
+	* Each type and name of the root message has a token bucket refilled every second. The budget is split by water
+	* filling over the volume of the last second: quiet keys get at least the fair share, so they keep all their trees,
+	* and what they leave is shared by the busy ones. No key gets less than cat.sampling.min.per.key. Trees that can not
+	* be discarded, like trees with errors, are always sent. The kept ratio of the busiest keys is reported in heartbeat
+	* as extension client-sampling.
+	* <p>
+	* The budget is split by the sender thread through {@link #tick(long)}, so no application thread pays for it.
+	*/
+public class AdaptiveSampler implements StatusExtension {
+	private static final int MAX_KEYS = 1000;
+
+	private static final int REPORTED_KEYS = 10;
+
+	private static final String OTHERS = "others";
+
+	private int m_budget;
+
+	private int m_minPerKey;
+
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, Bucket>> m_buckets = new ConcurrentHashMap<String, ConcurrentHashMap<String, Bucket>>();
+
+	private AtomicInteger m_keys = new AtomicInteger();
+
+	private Bucket m_others;
+
+	private volatile int m_defaultQuota;
+
+	private long m_nextAdjust;
+
+	private volatile List<Bucket> m_report = Collections.emptyList();
+
+	private LongAdder m_kept = new LongAdder();
+
+	private LongAdder m_dropped = new LongAdder();
+
+	private LongAdder m_forced = new LongAdder();
+
+	public AdaptiveSampler(int budget, int minPerKey) {
+		m_budget = budget;
+		m_minPerKey = Math.max(1, minPerKey);
+		m_defaultQuota = Math.max(m_minPerKey, budget);
+		m_others = new Bucket(OTHERS, m_defaultQuota);
+	}
+
+	/**
+		* split the budget over the keys by the volume of the last second, and refill the buckets
+		*/
+	void adjust() {
+		List<Bucket> buckets = new ArrayList<Bucket>();
+
+		for (ConcurrentHashMap<String, Bucket> item : m_buckets.values()) {
+			Iterator<Bucket> it = item.values().iterator();
+
+			while (it.hasNext()) {
+				Bucket bucket = it.next();
+
+				if (bucket.roll() == 0) {
+					it.remove(); // idle for a whole second
+					m_keys.decrementAndGet();
+				} else {
+					buckets.add(bucket);
+				}
+			}
+		}
+		m_others.roll();
+		buckets.add(m_others);
+
+		Bucket[] sorted = buckets.toArray(new Bucket[buckets.size()]);
+
+		Arrays.sort(sorted, new Comparator<Bucket>() {
+			@Override
+			public int compare(Bucket o1, Bucket o2) {
+				return Long.compare(o1.m_lastArrivals, o2.m_lastArrivals);
+			}
+		});
+
+		long remaining = m_budget;
+		int left = sorted.length;
+
+		for (Bucket bucket : sorted) {
+			long share = remaining / left;
+
+			bucket.refill((int) Math.max(m_minPerKey, share));
+			remaining = Math.max(0, remaining - Math.min(bucket.m_lastArrivals, share));
+			left--;
+		}
+
+		m_defaultQuota = (int) Math.max(m_minPerKey, remaining / (sorted.length + 1));
+
+		List<Bucket> report = new ArrayList<Bucket>(buckets);
+
+		Collections.sort(report, new Comparator<Bucket>() {
+			@Override
+			public int compare(Bucket o1, Bucket o2) {
+				return Long.compare(o2.m_lastArrivals, o1.m_lastArrivals);
+			}
+		});
+		m_report = report.size() > REPORTED_KEYS ? report.subList(0, REPORTED_KEYS) : report;
+	}
+
+	private Bucket findOrCreateBucket(String type, String name) {
+		ConcurrentHashMap<String, Bucket> item = m_buckets.get(type);
+
+		if (item == null) {
+			item = new ConcurrentHashMap<String, Bucket>();
+
+			ConcurrentHashMap<String, Bucket> oldValue = m_buckets.putIfAbsent(type, item);
+
+			if (oldValue != null) {
+				item = oldValue;
+			}
+		}
+
+		Bucket bucket = item.get(name);
+
+		if (bucket == null) {
+			if (m_keys.get() >= MAX_KEYS) {
+				return m_others;
+			}
+
+			bucket = new Bucket(type + ":" + name, m_defaultQuota);
+
+			Bucket oldValue = item.putIfAbsent(name, bucket);
+
+			if (oldValue != null) {
+				bucket = oldValue;
+			} else {
+				m_keys.incrementAndGet();
+			}
+		}
+		return bucket;
+	}
+
+	@Override
+	public String getDescription() {
+		return "client-sampling";
+	}
+
+	@Override
+	public String getId() {
+		return "client-sampling";
+	}
+
+	@Override
+	public Map<String, String> getProperties() {
+		Map<String, String> map = new HashMap<String, String>();
+
+		map.put("kept", String.valueOf(m_kept.sumThenReset()));
+		map.put("aggregated", String.valueOf(m_dropped.sumThenReset()));
+		map.put("kept-not-discardable", String.valueOf(m_forced.sumThenReset()));
+		map.put("keys", String.valueOf(m_keys.get()));
+
+		for (Bucket bucket : m_report) {
+			map.put("kept-ratio." + bucket.m_key, String.valueOf(bucket.getKeptRatio()));
+		}
+		return map;
+	}
+
+	/**
+		* split the budget again once a second is over, called by the sender thread only
+		*/
+	public void tick(long now) {
+		if (now >= m_nextAdjust) {
+			m_nextAdjust = now + 1000;
+			adjust();
+		}
+	}
+
+	/**
+		* @return true if the tree should be sent, false if it should only be aggregated in client
+		*/
+	public boolean sample(MessageTree tree) {
+		if (!tree.canDiscard()) {
+			m_forced.increment();
+			return true;
+		}
+
+		Message message = tree.getMessage();
+		Bucket bucket = message == null ? m_others : findOrCreateBucket(message.getType(), message.getName());
+
+		if (bucket.acquire()) {
+			m_kept.increment();
+			return true;
+		} else {
+			m_dropped.increment();
+			return false;
+		}
+	}
+
+	static class Bucket {
+		private String m_key;
+
+		private AtomicInteger m_tokens;
+
+		private LongAdder m_arrivals = new LongAdder();
+
+		private LongAdder m_kept = new LongAdder();
+
+		private volatile long m_lastArrivals;
+
+		private volatile long m_lastKept;
+
+		Bucket(String key, int quota) {
+			m_key = key;
+			m_tokens = new AtomicInteger(quota);
+		}
+
+		boolean acquire() {
+			m_arrivals.increment();
+
+			// a plain read first, so that a drained bucket costs no write
+			if (m_tokens.get() > 0 && m_tokens.getAndDecrement() > 0) {
+				m_kept.increment();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+			* @return ratio of trees sent during the last second
+			*/
+		double getKeptRatio() {
+			long arrivals = m_lastArrivals;
+
+			return arrivals == 0 ? 1.0 : (double) m_lastKept / arrivals;
+		}
+
+		void refill(int quota) {
+			m_tokens.set(quota);
+		}
+
+		/**
+			* @return number of trees seen during the last second
+			*/
+		long roll() {
+			m_lastArrivals = m_arrivals.sumThenReset();
+			m_lastKept = m_kept.sumThenReset();
+			return m_lastArrivals;
+		}
+	}
+}
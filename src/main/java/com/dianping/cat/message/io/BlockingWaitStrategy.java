@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageQueue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+	* Parks the consumer thread when idle, producers only pay for an unpark when the consumer is really parked.
+	*/
+public class BlockingWaitStrategy implements WaitStrategy {
+
+	private volatile Thread m_waiter;
+
+	@Override
+	public void waitFor(MessageQueue queue, long timeoutNanos) {
+		m_waiter = Thread.currentThread();
+
+		try {
+			// check again after publishing the waiter, so that an offer racing with us is never missed
+			if (queue.peek() == null) {
+				LockSupport.parkNanos(this, timeoutNanos);
+			}
+		} finally {
+			m_waiter = null;
+		}
+	}
+
+	@Override
+	public void signal() {
+		Thread waiter = m_waiter;
+
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+}
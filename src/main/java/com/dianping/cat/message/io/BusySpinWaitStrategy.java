@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageQueue;
+
+/**
+	* Burns one core polling the queue, only for hosts which can dedicate a CPU to the sender thread.
+	*/
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+	@Override
+	public void waitFor(MessageQueue queue, long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+
+		while (queue.peek() == null && !Thread.currentThread().isInterrupted()) {
+			if (System.nanoTime() - deadline >= 0) {
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void signal() {
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.status.StatusExtension;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.compression.JdkZlibEncoder;
+import io.netty.handler.codec.compression.Lz4FrameEncoder;
+import io.netty.handler.codec.compression.ZstdEncoder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+	* Optional compression stage of the client channel pipeline.
+	* <p>
+	* The compressor buffers the encoded trees written by the sender and emits one compressed frame per flush, so a
+	* frame holds one sender batch. lz4 and zstd need lz4-java and zstd-jni on the classpath, deflate only needs the JDK.
+	* Compression ratio and time spent in the compressor are reported in heartbeat as extension client-compression.
+	*/
+@Slf4j
+public class ChannelCompression implements StatusExtension {
+
+	public static final String NONE = "none";
+
+	public static final String LZ4 = "lz4";
+
+	public static final String ZSTD = "zstd";
+
+	public static final String DEFLATE = "deflate";
+
+	private String m_codec;
+
+	private int m_level;
+
+	private AtomicLong m_rawBytes = new AtomicLong();
+
+	private AtomicLong m_compressedBytes = new AtomicLong();
+
+	private AtomicLong m_nanos = new AtomicLong();
+
+	public ChannelCompression(String codec, int level) {
+		m_codec = checkCodec(codec == null ? NONE : codec.trim().toLowerCase());
+		m_level = level;
+	}
+
+	private String checkCodec(String codec) {
+		String requiredClass = null;
+
+		if (LZ4.equals(codec)) {
+			requiredClass = "net.jpountz.lz4.LZ4Factory";
+		} else if (ZSTD.equals(codec)) {
+			requiredClass = "com.github.luben.zstd.Zstd";
+		} else if (!DEFLATE.equals(codec)) {
+			return NONE;
+		}
+
+		if (requiredClass != null) {
+			try {
+				Class.forName(requiredClass);
+			} catch (Throwable e) {
+				log.warn("compression " + codec + " is disabled, " + requiredClass + " is not in classpath");
+				return NONE;
+			}
+		}
+		return codec;
+	}
+
+	private ChannelHandler createEncoder() {
+		if (LZ4.equals(m_codec)) {
+			return new Lz4FrameEncoder(m_level > 0); // any positive level turns on the high compressor
+		} else if (ZSTD.equals(m_codec)) {
+			return m_level > 0 ? new ZstdEncoder(m_level) : new ZstdEncoder();
+		} else if (DEFLATE.equals(m_codec)) {
+			return m_level > 0 ? new JdkZlibEncoder(m_level) : new JdkZlibEncoder();
+		} else {
+			return null;
+		}
+	}
+
+	public String getCodec() {
+		return m_codec;
+	}
+
+	@Override
+	public String getDescription() {
+		return "client-compression";
+	}
+
+	@Override
+	public String getId() {
+		return "client-compression";
+	}
+
+	@Override
+	public Map<String, String> getProperties() {
+		Map<String, String> map = new HashMap<String, String>();
+		long raw = m_rawBytes.getAndSet(0);
+		long compressed = m_compressedBytes.getAndSet(0);
+		long nanos = m_nanos.getAndSet(0);
+
+		map.put("raw-bytes", String.valueOf(raw));
+		map.put("compressed-bytes", String.valueOf(compressed));
+		map.put("compress-ms", String.valueOf(nanos / 1000000L));
+
+		if (compressed > 0) {
+			map.put("compress-ratio", String.format("%.2f", (double) raw / compressed));
+		}
+		return map;
+	}
+
+	public void initChannel(Channel channel) {
+		ChannelHandler encoder = createEncoder();
+
+		if (encoder != null) {
+			ChannelPipeline pipeline = channel.pipeline();
+			Meter meter = new Meter();
+
+			// outbound data flows from the last handler to the first one
+			pipeline.addLast("compressed-meter", meter.m_compressedMeter);
+			pipeline.addLast("compressor", encoder);
+			pipeline.addLast("raw-meter", meter.m_rawMeter);
+		}
+	}
+
+	public boolean isEnabled() {
+		return !NONE.equals(m_codec);
+	}
+
+	/**
+		* time spent in the compressor is the time measured around it minus the time spent in the handlers after it.
+		*/
+	private class Meter {
+		private long m_downstreamNanos;
+
+		private ChannelOutboundHandlerAdapter m_rawMeter = new ChannelOutboundHandlerAdapter() {
+			@Override
+			public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+				if (msg instanceof ByteBuf) {
+					m_rawBytes.addAndGet(((ByteBuf) msg).readableBytes());
+				}
+
+				long start = System.nanoTime();
+
+				m_downstreamNanos = 0;
+				ctx.write(msg, promise);
+				m_nanos.addAndGet(System.nanoTime() - start - m_downstreamNanos);
+			}
+
+			@Override
+			public void flush(ChannelHandlerContext ctx) throws Exception {
+				long start = System.nanoTime();
+
+				m_downstreamNanos = 0;
+				ctx.flush();
+				m_nanos.addAndGet(System.nanoTime() - start - m_downstreamNanos);
+			}
+		};
+
+		private ChannelOutboundHandlerAdapter m_compressedMeter = new ChannelOutboundHandlerAdapter() {
+			@Override
+			public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+				if (msg instanceof ByteBuf) {
+					m_compressedBytes.addAndGet(((ByteBuf) msg).readableBytes());
+				}
+
+				long start = System.nanoTime();
+
+				ctx.write(msg, promise);
+				m_downstreamNanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void flush(ChannelHandlerContext ctx) throws Exception {
+				long start = System.nanoTime();
+
+				ctx.flush();
+				m_downstreamNanos += System.nanoTime() - start;
+			}
+		};
+	}
+}
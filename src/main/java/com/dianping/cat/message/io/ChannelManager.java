@@ -18,12 +18,20 @@
  */
 package com.dianping.cat.message.io;
 
+import com.dianping.cat.ApplicationSettings;
 import com.dianping.cat.configuration.ClientConfigManager;
-import com.dianping.cat.message.internal.MessageIdFactory;
+import com.dianping.cat.status.StatusExtension;
+import com.dianping.cat.status.StatusExtensionRegister;
 import com.dianping.cat.util.Threads;
 import com.site.helper.Splitters;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import lombok.extern.slf4j.Slf4j;
@@ -34,82 +42,210 @@ import org.apache.commons.lang3.tuple.MutablePair;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 @Slf4j
 public class ChannelManager implements Threads.Task {
 
+	private static final long BACKOFF_MIN = Math.max(1, ApplicationSettings.getReconnectBackoffMinMillis());
+
+	private static final long BACKOFF_MAX = Math.max(BACKOFF_MIN, ApplicationSettings.getReconnectBackoffMaxMillis());
+
 	private ClientConfigManager m_configManager;
 
 	private Bootstrap m_bootstrap;
 
-	private boolean m_active = true;
+	private EventLoopGroup m_group;
 
-	private int m_channelStalledTimes = 0;
+	private volatile boolean m_active = true;
 
-	private ChannelHolder m_activeChannelHolder;
+	private int m_channelStalledTimes = 0;
 
-	private MessageIdFactory m_idFactory;
+	private volatile ChannelHolder m_activeChannelHolder;
 
 	private AtomicInteger m_attempts = new AtomicInteger();
 
+	private ChannelCompression m_compression;
+
+	private AtomicReferenceArray<ChannelFuture> m_shardFutures;
+
+	private AtomicIntegerArray m_shardAttempts;
+
+	private AtomicBoolean m_connecting = new AtomicBoolean();
+
+	private int m_reconnectAttempts;
+
+	private long m_failoverStart;
+
+	private AtomicLong m_failovers = new AtomicLong();
+
+	private AtomicLong m_failoverMaxMillis = new AtomicLong();
+
+	private volatile long m_failoverLastMillis;
 
+	private AtomicLong m_connectFailures = new AtomicLong();
 
-	public ChannelManager( List<InetSocketAddress> serverAddresses, ClientConfigManager configManager,
-							MessageIdFactory idFactory) {
+
+
+	public ChannelManager(List<InetSocketAddress> serverAddresses, ClientConfigManager configManager) {
 
 		m_configManager = configManager;
-		m_idFactory = idFactory;
+		m_compression = new ChannelCompression(ApplicationSettings.getCompression(), ApplicationSettings.getCompressionLevel());
+
+		if (m_compression.isEnabled()) {
+			StatusExtensionRegister.getInstance().register(m_compression);
+			log.info("compress client channel with " + m_compression.getCodec());
+		}
 
-		EventLoopGroup group = new NioEventLoopGroup(1, new ThreadFactory() {
+		ThreadFactory threadFactory = new ThreadFactory() {
 			@Override
 			public Thread newThread(Runnable r) {
 				Thread t = new Thread(r);
 				t.setDaemon(true);
 				return t;
 			}
-		});
-
+		};
 		Bootstrap bootstrap = new Bootstrap();
-		bootstrap.group(group).channel(NioSocketChannel.class);
+
+		if (ApplicationSettings.isNettyEpoll() && Epoll.isAvailable()) {
+			m_group = new EpollEventLoopGroup(1, threadFactory);
+			bootstrap.group(m_group).channel(EpollSocketChannel.class);
+			log.info("use epoll transport for client channel");
+		} else {
+			m_group = new NioEventLoopGroup(1, threadFactory);
+			bootstrap.group(m_group).channel(NioSocketChannel.class);
+		}
+
 		bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
+		bootstrap.option(ChannelOption.TCP_NODELAY, ApplicationSettings.isNettyTcpNoDelay());
+		bootstrap.option(ChannelOption.ALLOCATOR, createAllocator(ApplicationSettings.getNettyAllocator()));
+		bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, ApplicationSettings.getConnectTimeoutMillis());
+
+		int sendBuffer = ApplicationSettings.getNettySendBuffer();
+
+		if (sendBuffer > 0) {
+			bootstrap.option(ChannelOption.SO_SNDBUF, sendBuffer);
+		}
+
+		int high = ApplicationSettings.getNettyWriteBufferHigh();
+		int low = Math.min(ApplicationSettings.getNettyWriteBufferLow(), high);
+
+		bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(low, high));
 		bootstrap.handler(new ChannelInitializer<Channel>() {
 			@Override
 			protected void initChannel(Channel ch) throws Exception {
+				m_compression.initChannel(ch);
 			}
 		});
 		m_bootstrap = bootstrap;
 
 		String routerConfig = m_configManager.getRouters();
+		ChannelHolder holder = new ChannelHolder();
 
 		if (StringUtils.isNotEmpty(routerConfig)) {
-			List<InetSocketAddress> configedAddresses = parseSocketAddress(routerConfig);
-			ChannelHolder holder = initChannel(configedAddresses, routerConfig);
+			holder.setServerAddresses(parseSocketAddress(routerConfig)).setActiveServerConfig(routerConfig);
+		} else {
+			holder.setServerAddresses(serverAddresses);
+		}
+		m_activeChannelHolder = holder;
 
-			if (holder != null) {
-				m_activeChannelHolder = holder;
-			} else {
-				m_activeChannelHolder = new ChannelHolder();
-				m_activeChannelHolder.setServerAddresses(configedAddresses);
+		int connections = Math.max(0, ApplicationSettings.getSenderConnections() - 1);
+
+		m_shardFutures = new AtomicReferenceArray<ChannelFuture>(connections);
+		m_shardAttempts = new AtomicIntegerArray(connections);
+
+		StatusExtensionRegister.getInstance().register(new StatusExtension() {
+
+			@Override
+			public String getDescription() {
+				return "client-connection";
 			}
-		} else {
-			ChannelHolder holder = initChannel(serverAddresses, null);
 
-			if (holder != null) {
-				m_activeChannelHolder = holder;
-			} else {
-				m_activeChannelHolder = new ChannelHolder();
-				m_activeChannelHolder.setServerAddresses(serverAddresses);
-				log.error("error when init cat module due to error config xml in client.xml");
+			@Override
+			public String getId() {
+				return "client-connection";
+			}
+
+			@Override
+			public Map<String, String> getProperties() {
+				Map<String, String> map = new HashMap<String, String>();
+
+				map.put("failover-count", String.valueOf(m_failovers.getAndSet(0)));
+				map.put("failover-last-ms", String.valueOf(m_failoverLastMillis));
+				map.put("failover-max-ms", String.valueOf(m_failoverMaxMillis.getAndSet(0)));
+				map.put("connect-failures", String.valueOf(m_connectFailures.getAndSet(0)));
+				return map;
+			}
+		});
+
+		startFailover();
+		connectShards();
+	}
+
+	/**
+		* make the channel the active one of the holder, unless the holder is not active any more or a better server is
+		* already used
+		*/
+	private synchronized void activate(ChannelHolder holder, ChannelFuture future, int index) {
+		if (holder != m_activeChannelHolder || !m_active) {
+			closeChannel(future);
+			return;
+		}
+
+		ChannelFuture last = holder.getActiveFuture();
+
+		if (last != null && last.channel().isActive() && holder.getActiveIndex() <= index) {
+			closeChannel(future);
+			return;
+		}
+
+		holder.setActiveFuture(future).setActiveIndex(index);
+		holder.setIp(holder.getServerAddresses().get(index).getAddress().getHostAddress());
+		watch(future);
+		closeChannel(last);
+		log.info("switch active channel to " + holder);
+
+		if (m_failoverStart > 0) {
+			long millis = (System.nanoTime() - m_failoverStart) / 1000000L;
+
+			m_failoverStart = 0;
+			m_failoverLastMillis = millis;
+			m_failovers.incrementAndGet();
+
+			while (true) {
+				long max = m_failoverMaxMillis.get();
+
+				if (millis <= max || m_failoverMaxMillis.compareAndSet(max, millis)) {
+					break;
+				}
 			}
+			log.info("failover of CAT server is done in " + millis + " ms");
+		}
+	}
+
+	private long backoff(int attempts) {
+		long delay = BACKOFF_MIN << Math.min(attempts, 20);
+
+		if (delay <= 0 || delay > BACKOFF_MAX) {
+			delay = BACKOFF_MAX;
 		}
+		return (long) (delay * (0.5 + ThreadLocalRandom.current().nextDouble())); // jitter of +-50%
 	}
 
 	public ChannelFuture channel() {
-		if (m_activeChannelHolder != null) {
-			ChannelFuture future = m_activeChannelHolder.getActiveFuture();
+		ChannelHolder holder = m_activeChannelHolder;
+
+		if (holder != null) {
+			ChannelFuture future = holder.getActiveFuture();
 
 			if (checkWritable(future)) {
 				return future;
@@ -118,6 +254,29 @@ public class ChannelManager implements Threads.Task {
 		return null;
 	}
 
+	/**
+		* collect the writable channels, the active one first followed by the shard connections
+		*
+		* @param channels list to fill, cleared first
+		*/
+	public void channels(List<Channel> channels) {
+		channels.clear();
+
+		ChannelFuture active = channel();
+
+		if (active != null) {
+			channels.add(active.channel());
+		}
+
+		for (int i = 0; i < m_shardFutures.length(); i++) {
+			ChannelFuture future = m_shardFutures.get(i);
+
+			if (future != null && future.channel().isActive() && future.channel().isWritable()) {
+				channels.add(future.channel());
+			}
+		}
+	}
+
 	private boolean checkActive(ChannelFuture future) {
 		boolean isActive = false;
 
@@ -139,20 +298,30 @@ public class ChannelManager implements Threads.Task {
 
 		if (pair.getKey()) {
 			log.info("router config changed :" + pair.getValue());
-			String servers = pair.getValue();
-			List<InetSocketAddress> serverAddresses = parseSocketAddress(servers);
-			ChannelHolder newHolder = initChannel(serverAddresses, servers);
+			final String servers = pair.getValue();
+			final List<InetSocketAddress> serverAddresses = parseSocketAddress(servers);
+			final ChannelHolder last = m_activeChannelHolder;
+			int index = indexOf(serverAddresses, last.getIp());
 
-			if (newHolder != null) {
-				if (newHolder.isConnectChanged()) {
-					ChannelHolder last = m_activeChannelHolder;
+			if (index >= 0 && checkActive(last.getActiveFuture())) {
+				// keep current connection, a better server is tried by reconnectDefaultServer
+				ChannelHolder holder = new ChannelHolder();
 
-					m_activeChannelHolder = newHolder;
-					closeChannelHolder(last);
-					log.info("switch active channel to " + m_activeChannelHolder);
-				} else {
-					m_activeChannelHolder = newHolder;
-				}
+				holder.setActiveFuture(last.getActiveFuture()).setActiveIndex(index).setIp(last.getIp());
+				holder.setActiveServerConfig(servers).setServerAddresses(serverAddresses);
+				m_activeChannelHolder = holder;
+			} else if (!serverAddresses.isEmpty()) {
+				connectAny(serverAddresses, serverAddresses.size(), new ConnectListener() {
+					@Override
+					public void onConnected(ChannelFuture future, int index) {
+						switchChannelHolder(last, servers, serverAddresses, future, index);
+					}
+
+					@Override
+					public void onFailed() {
+						log.info("Error when init CAT server " + servers);
+					}
+				});
 			}
 		}
 	}
@@ -181,6 +350,16 @@ public class ChannelManager implements Threads.Task {
 		return isWriteable;
 	}
 
+	private ByteBufAllocator createAllocator(String allocator) {
+		if ("pooled".equalsIgnoreCase(allocator)) {
+			return PooledByteBufAllocator.DEFAULT;
+		} else if ("unpooled".equalsIgnoreCase(allocator)) {
+			return UnpooledByteBufAllocator.DEFAULT;
+		} else {
+			return ByteBufAllocator.DEFAULT;
+		}
+	}
+
 	private void closeChannel(ChannelFuture channel) {
 		try {
 			if (channel != null) {
@@ -206,90 +385,167 @@ public class ChannelManager implements Threads.Task {
 		}
 	}
 
-	private ChannelFuture createChannel(InetSocketAddress address) {
-		log.info("start connect server" + address.toString());
-		ChannelFuture future = null;
+	private void closeShards() {
+		for (int i = 0; i < m_shardFutures.length(); i++) {
+			closeChannel(m_shardFutures.getAndSet(i, null));
+		}
+	}
+
+	/**
+		* connect to the first count servers in parallel, the first connection established wins and the others are
+		* closed
+		*/
+	private void connectAny(final List<InetSocketAddress> addresses, int count, final ConnectListener listener) {
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicInteger pending = new AtomicInteger(count);
+
+		for (int i = 0; i < count; i++) {
+			final int index = i;
+			final InetSocketAddress address = addresses.get(i);
+
+			try {
+				m_bootstrap.connect(address).addListener(new ChannelFutureListener() {
+					@Override
+					public void operationComplete(ChannelFuture future) throws Exception {
+						if (future.isSuccess()) {
+							if (done.compareAndSet(false, true)) {
+								log.info("Connected to CAT server at " + address);
+								listener.onConnected(future, index);
+							} else {
+								closeChannel(future);
+							}
+						} else {
+							m_connectFailures.incrementAndGet();
+							log.error("Error when try connecting to " + address);
+						}
+
+						if (pending.decrementAndGet() == 0 && !done.get()) {
+							listener.onFailed();
+						}
+					}
+				});
+			} catch (Throwable e) {
+				log.error("Error when connect server " + address.getAddress(), e);
+
+				if (pending.decrementAndGet() == 0 && !done.get()) {
+					listener.onFailed();
+				}
+			}
+		}
+	}
+
+	private void connectShard(final int shard) {
+		List<InetSocketAddress> addresses = m_activeChannelHolder.getServerAddresses();
+		int size = addresses == null ? 0 : addresses.size();
+
+		if (size == 0 || !m_active) {
+			return;
+		}
+
+		InetSocketAddress address = addresses.get((Math.max(0, m_activeChannelHolder.getActiveIndex()) + shard + 1) % size);
 
 		try {
-			future = m_bootstrap.connect(address);
-			future.awaitUninterruptibly(100, TimeUnit.MILLISECONDS); // 100 ms
+			final ChannelFuture future = m_bootstrap.connect(address);
 
-			if (!future.isSuccess()) {
-				log.error("Error when try connecting to " + address);
+			if (!m_shardFutures.compareAndSet(shard, null, future)) {
 				closeChannel(future);
-			} else {
-				log.info("Connected to CAT server at " + address);
-				return future;
+				return;
 			}
+			future.addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture f) throws Exception {
+					if (f.isSuccess()) {
+						m_shardAttempts.set(shard, 0);
+					} else {
+						m_connectFailures.incrementAndGet();
+					}
+
+					f.channel().closeFuture().addListener(new ChannelFutureListener() {
+						@Override
+						public void operationComplete(ChannelFuture closed) throws Exception {
+							if (m_shardFutures.compareAndSet(shard, future, null)) {
+								scheduleShard(shard);
+							}
+						}
+					});
+				}
+			});
 		} catch (Throwable e) {
 			log.error("Error when connect server " + address.getAddress(), e);
+		}
+	}
 
-			if (future != null) {
-				closeChannel(future);
+	/**
+		* keep the extra connections open, shard i connects to the i-th server after the active one in the router list,
+		* several connections share a server when there are fewer servers than connections
+		*/
+	private void connectShards() {
+		for (int i = 0; i < m_shardFutures.length(); i++) {
+			if (m_shardFutures.get(i) == null) {
+				connectShard(i);
 			}
 		}
-		return null;
 	}
 
 	private void doubleCheckActiveServer(ChannelHolder channelHolder) {
 		try {
-			if (isChannelStalled(channelHolder)) {
-				closeChannelHolder(m_activeChannelHolder);
-				channelHolder.setActiveIndex(-1);
+			if (channelHolder.getActiveFuture() == null) {
+				startFailover();
+			} else if (isChannelStalled(channelHolder)) {
+				closeChannelHolder(m_activeChannelHolder); // failover is started by the close listener
 			}
 		} catch (Throwable e) {
 			log.error(e.getMessage(), e);
 		}
 	}
 
-	@Override
-	public String getName() {
-		return "TcpSocketSender-ChannelManager";
-	}
-
-	private ChannelHolder initChannel(List<InetSocketAddress> addresses, String serverConfig) {
-		try {
-			int len = addresses.size();
+	/**
+		* connect to all servers of the active holder until one succeeds, retried with exponential backoff
+		*/
+	private void failover() {
+		final ChannelHolder holder = m_activeChannelHolder;
+		List<InetSocketAddress> addresses = holder.getServerAddresses();
 
-			for (int i = 0; i < len; i++) {
-				InetSocketAddress address = addresses.get(i);
-				String hostAddress = address.getAddress().getHostAddress();
-				ChannelHolder holder = null;
-
-				if (m_activeChannelHolder != null && hostAddress.equals(m_activeChannelHolder.getIp())) {
-					holder = new ChannelHolder();
-					holder.setActiveFuture(m_activeChannelHolder.getActiveFuture()).setConnectChanged(false);
-				} else {
-					ChannelFuture future = createChannel(address);
+		if (!m_active) {
+			m_connecting.set(false);
+			return;
+		}
 
-					if (future != null) {
-						holder = new ChannelHolder();
-						holder.setActiveFuture(future).setConnectChanged(true);
-					}
-				}
-				if (holder != null) {
-					holder.setActiveIndex(i).setIp(hostAddress);
-					holder.setActiveServerConfig(serverConfig).setServerAddresses(addresses);
+		ConnectListener listener = new ConnectListener() {
+			@Override
+			public void onConnected(ChannelFuture future, int index) {
+				m_reconnectAttempts = 0;
+				m_connecting.set(false);
+				activate(holder, future, index);
+			}
 
-					log.info("success when init CAT server, new active holder" + holder.toString());
-					return holder;
-				}
+			@Override
+			public void onFailed() {
+				scheduleFailover();
 			}
-		} catch (Exception e) {
-			log.error(e.getMessage(), e);
+		};
+
+		if (addresses == null || addresses.isEmpty()) {
+			listener.onFailed();
+		} else {
+			connectAny(addresses, addresses.size(), listener);
 		}
+	}
 
-		try {
-			StringBuilder sb = new StringBuilder();
+	@Override
+	public String getName() {
+		return "TcpSocketSender-ChannelManager";
+	}
 
-			for (InetSocketAddress address : addresses) {
-				sb.append(address.toString()).append(";");
+	private int indexOf(List<InetSocketAddress> addresses, String ip) {
+		if (ip != null) {
+			for (int i = 0; i < addresses.size(); i++) {
+				if (ip.equals(addresses.get(i).getAddress().getHostAddress())) {
+					return i;
+				}
 			}
-			log.info("Error when init CAT server " + sb.toString());
-		} catch (Exception e) {
-			// ignore
 		}
-		return null;
+		return -1;
 	}
 
 	private boolean isChannelStalled(ChannelHolder holder) {
@@ -310,6 +566,17 @@ public class ChannelManager implements Threads.Task {
 		}
 	}
 
+	private synchronized void onChannelClosed(ChannelFuture future) {
+		if (m_active && future == m_activeChannelHolder.getActiveFuture()) {
+			log.warn("active channel is closed " + future.channel().remoteAddress());
+
+			if (m_failoverStart == 0) {
+				m_failoverStart = System.nanoTime();
+			}
+			startFailover();
+		}
+	}
+
 	private List<InetSocketAddress> parseSocketAddress(String content) {
 		try {
 			List<String> strs = Splitters.by(";").noEmptyItem().split(content);
@@ -327,24 +594,25 @@ public class ChannelManager implements Threads.Task {
 		return new ArrayList<InetSocketAddress>();
 	}
 
-	private void reconnectDefaultServer(ChannelFuture activeFuture, List<InetSocketAddress> serverAddresses) {
+	/**
+		* go back to a server in front of the active one in the router list once it is reachable
+		*/
+	private void reconnectDefaultServer() {
 		try {
-			int reconnectServers = m_activeChannelHolder.getActiveIndex();
-
-			if (reconnectServers == -1) {
-				reconnectServers = serverAddresses.size();
-			}
-			for (int i = 0; i < reconnectServers; i++) {
-				ChannelFuture future = createChannel(serverAddresses.get(i));
-
-				if (future != null) {
-					ChannelFuture lastFuture = activeFuture;
+			final ChannelHolder holder = m_activeChannelHolder;
+			int index = holder.getActiveIndex();
+
+			if (index > 0 && !m_connecting.get()) {
+				connectAny(holder.getServerAddresses(), index, new ConnectListener() {
+					@Override
+					public void onConnected(ChannelFuture future, int index) {
+						activate(holder, future, index);
+					}
 
-					m_activeChannelHolder.setActiveFuture(future);
-					m_activeChannelHolder.setActiveIndex(i);
-					closeChannel(lastFuture);
-					break;
-				}
+					@Override
+					public void onFailed() {
+					}
+				});
 			}
 		} catch (Throwable e) {
 			log.error(e.getMessage(), e);
@@ -364,15 +632,10 @@ public class ChannelManager implements Threads.Task {
 	@Override
 	public void run() {
 		while (m_active) {
-			// make save message id index asyc
-			m_idFactory.saveMark();
 			checkServerChanged();
-
-			ChannelFuture activeFuture = m_activeChannelHolder.getActiveFuture();
-			List<InetSocketAddress> serverAddresses = m_activeChannelHolder.getServerAddresses();
-
 			doubleCheckActiveServer(m_activeChannelHolder);
-			reconnectDefaultServer(activeFuture, serverAddresses);
+			reconnectDefaultServer();
+			connectShards();
 
 			try {
 				Thread.sleep(10 * 1000L); // check every 10 seconds
@@ -382,13 +645,88 @@ public class ChannelManager implements Threads.Task {
 		}
 	}
 
+	private void scheduleFailover() {
+		long delay = backoff(m_reconnectAttempts++);
+
+		try {
+			m_group.schedule(new Runnable() {
+				@Override
+				public void run() {
+					failover();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			m_connecting.set(false); // event loop is shut down
+		}
+	}
+
+	private void scheduleShard(final int shard) {
+		if (m_active) {
+			try {
+				m_group.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (m_shardFutures.get(shard) == null) {
+							connectShard(shard);
+						}
+					}
+				}, backoff(m_shardAttempts.getAndIncrement(shard)), TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+				// event loop is shut down
+			}
+		}
+	}
+
 	@Override
 	public void shutdown() {
 		m_active = false;
 	}
 
+	private void startFailover() {
+		if (m_connecting.compareAndSet(false, true)) {
+			failover();
+		}
+	}
+
+	private synchronized void switchChannelHolder(ChannelHolder last, String servers, List<InetSocketAddress> addresses,
+							ChannelFuture future, int index) {
+		if (last != m_activeChannelHolder || !m_active) {
+			closeChannel(future);
+			return;
+		}
+
+		ChannelHolder holder = new ChannelHolder();
+
+		holder.setActiveFuture(future).setActiveIndex(index).setConnectChanged(true);
+		holder.setIp(addresses.get(index).getAddress().getHostAddress());
+		holder.setActiveServerConfig(servers).setServerAddresses(addresses);
+		m_activeChannelHolder = holder;
+		watch(future);
+		closeChannelHolder(last);
+		closeShards();
+		log.info("switch active channel to " + holder);
+	}
+
+	/**
+		* start failover as soon as the active channel is closed instead of waiting for the next check
+		*/
+	private void watch(final ChannelFuture future) {
+		future.channel().closeFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture closed) throws Exception {
+				onChannelClosed(future);
+			}
+		});
+	}
+
+	private interface ConnectListener {
+		public void onConnected(ChannelFuture future, int index);
+
+		public void onFailed();
+	}
+
 	public static class ChannelHolder {
-		private ChannelFuture m_activeFuture;
+		private volatile ChannelFuture m_activeFuture;
 
 		private int m_activeIndex = -1;
 
@@ -473,4 +811,4 @@ public class ChannelManager implements Threads.Task {
 		}
 	}
 
-}
\ No newline at end of file
+}
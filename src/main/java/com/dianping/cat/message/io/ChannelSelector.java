@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageTree;
+import io.netty.channel.Channel;
+
+import java.util.List;
+
+/**
+	* Strategy used by the sender thread to pick the connection of a message tree when several connections are open.
+	*/
+public interface ChannelSelector {
+
+	/**
+		* @param channels writable channels, never empty
+		* @param tree     tree to send, its message id is already set
+		* @return channel to write the tree to
+		*/
+	public Channel select(List<Channel> channels, MessageTree tree);
+}
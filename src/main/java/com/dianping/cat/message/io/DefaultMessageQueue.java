@@ -21,9 +21,9 @@ package com.dianping.cat.message.io;
 import com.dianping.cat.message.spi.MessageQueue;
 import com.dianping.cat.message.spi.MessageTree;
 
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 public class DefaultMessageQueue implements MessageQueue {
 
@@ -33,6 +33,11 @@ public class DefaultMessageQueue implements MessageQueue {
 		m_queue = new ArrayBlockingQueue<MessageTree>(size);
 	}
 
+	@Override
+	public int drainTo(List<MessageTree> trees, int maxElements) {
+		return m_queue.drainTo(trees, maxElements);
+	}
+
 	@Override
 	public boolean offer(MessageTree tree) {
 		return m_queue.offer(tree);
@@ -45,11 +50,7 @@ public class DefaultMessageQueue implements MessageQueue {
 
 	@Override
 	public MessageTree poll() {
-		try {
-			return m_queue.poll(5, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException e) {
-			return null;
-		}
+		return m_queue.poll();
 	}
 
 	@Override
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageCodec;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.codec.NativeMessageCodec;
+import com.dianping.cat.util.CleanupHelper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+	* Overflow tier of the sender queue, trees that do not fit into the memory queue are encoded with NT1 and appended
+	* to a log of memory mapped segment files, and read back once a channel is writable again.
+	* <p>
+	* Each record is a length followed by one encoded tree, the length is negated once the record is replayed so the
+	* records left after a restart can be found again. When the log reaches its max size the oldest segment is dropped.
+	* <p>
+	* Trees are spilled and replayed by the sender thread only, application threads hand their overflow to it.
+	*/
+@Slf4j
+public class DiskSpillQueue {
+
+	private static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "spill-";
+
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private MessageCodec m_codec = new NativeMessageCodec();
+
+	private File m_dir;
+
+	private int m_segmentSize;
+
+	private int m_maxSegments;
+
+	private long m_nextSegmentId;
+
+	private LinkedList<Segment> m_segments = new LinkedList<Segment>();
+
+	private FileLock m_lock;
+
+	private volatile int m_size;
+
+	private AtomicLong m_spilled = new AtomicLong();
+
+	private AtomicLong m_replayed = new AtomicLong();
+
+	private AtomicLong m_evicted = new AtomicLong();
+
+	private AtomicLong m_dropped = new AtomicLong();
+
+	public DiskSpillQueue(File dir, long maxBytes) {
+		m_dir = dir;
+		m_segmentSize = (int) Math.max(64 * 1024, Math.min(MAX_SEGMENT_SIZE, maxBytes / 2));
+		m_maxSegments = (int) Math.max(2, maxBytes / m_segmentSize);
+	}
+
+	/**
+		* lock the spill directory and recover the records left by last run
+		*
+		* @return false if the directory is not usable or is used by another process
+		*/
+	public synchronized boolean initialize() {
+		try {
+			m_dir.mkdirs();
+
+			RandomAccessFile lockFile = new RandomAccessFile(new File(m_dir, "spill.lock"), "rw");
+
+			m_lock = lockFile.getChannel().tryLock();
+
+			if (m_lock == null) {
+				lockFile.close();
+				log.warn("spill directory " + m_dir + " is used by another process");
+				return false;
+			}
+			recover();
+			return true;
+		} catch (Exception e) {
+			log.error("error when init spill directory " + m_dir, e);
+			return false;
+		}
+	}
+
+	public boolean isEmpty() {
+		return m_size == 0;
+	}
+
+	/**
+		* encode the tree and append it to the log
+		*
+		* @return false if the tree could not be spilled
+		*/
+	public synchronized boolean offer(MessageTree tree) {
+		if (m_lock == null) {
+			return false;
+		}
+
+		ByteBuf buf = m_codec.encode(tree);
+
+		try {
+			int len = buf.readableBytes();
+
+			if (len + 4 > m_segmentSize) {
+				m_dropped.incrementAndGet();
+				return false;
+			}
+
+			Segment segment = m_segments.isEmpty() ? null : m_segments.getLast();
+
+			if (segment == null || segment.m_writePosition + 4 + len > segment.m_capacity) {
+				segment = roll();
+			}
+
+			MappedByteBuffer buffer = segment.buffer();
+			int position = segment.m_writePosition;
+			ByteBuffer dst = buffer.duplicate();
+
+			dst.limit(position + 4 + len);
+			dst.position(position + 4);
+			buf.getBytes(buf.readerIndex(), dst);
+			buffer.putInt(position, len); // length goes last so a half written record is never read
+			segment.m_writePosition = position + 4 + len;
+			segment.m_size++;
+			m_size++;
+			m_spilled.incrementAndGet();
+			return true;
+		} catch (Exception e) {
+			m_dropped.incrementAndGet();
+			log.error("error when spill message to " + m_dir, e);
+			return false;
+		} finally {
+			BufReleaseHelper.release(buf);
+		}
+	}
+
+	/**
+		* read the oldest record not replayed yet
+		*
+		* @return the encoded tree, null if the log is empty
+		*/
+	public synchronized ByteBuf poll(ByteBufAllocator allocator) {
+		while (m_size > 0 && !m_segments.isEmpty()) {
+			Segment segment = m_segments.getFirst();
+
+			try {
+				MappedByteBuffer buffer = segment.buffer();
+
+				while (segment.m_readPosition < segment.m_writePosition) {
+					int position = segment.m_readPosition;
+					int len = buffer.getInt(position);
+
+					segment.m_readPosition = position + 4 + Math.abs(len);
+
+					if (len > 0) {
+						ByteBuf buf = allocator.buffer(len);
+						ByteBuffer src = buffer.duplicate();
+
+						src.limit(position + 4 + len);
+						src.position(position + 4);
+						buf.writeBytes(src);
+						buffer.putInt(position, -len);
+						segment.m_size--;
+						m_size--;
+						m_replayed.incrementAndGet();
+						return buf;
+					}
+				}
+			} catch (Exception e) {
+				log.error("error when read spilled message from " + segment.m_file, e);
+				m_size -= segment.m_size;
+				segment.m_size = 0;
+			}
+
+			if (segment == m_segments.getLast()) {
+				break;
+			} else {
+				m_segments.removeFirst();
+				segment.delete();
+			}
+		}
+		return null;
+	}
+
+	private void recover() throws IOException {
+		File[] files = m_dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		long[] ids = new long[files == null ? 0 : files.length];
+
+		for (int i = 0; i < ids.length; i++) {
+			String name = files[i].getName();
+
+			try {
+				ids[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				ids[i] = -1;
+			}
+		}
+		Arrays.sort(ids);
+
+		for (long id : ids) {
+			if (id >= 0) {
+				File file = new File(m_dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+				long length = file.length();
+				// the segment size may have been changed by cat.spill.max.mb since the file was written
+				Segment segment = new Segment(id, (int) Math.min(length, Integer.MAX_VALUE));
+
+				if (length >= 4 && length <= Integer.MAX_VALUE) {
+					MappedByteBuffer buffer = segment.buffer();
+					int capacity = segment.m_capacity;
+					int position = 0;
+
+					segment.m_readPosition = -1;
+
+					while (position + 4 <= capacity) {
+						int len = buffer.getInt(position);
+
+						if (len == 0 || position + 4 + Math.abs(len) > capacity) {
+							break;
+						} else if (len > 0) {
+							if (segment.m_readPosition < 0) {
+								segment.m_readPosition = position;
+							}
+							segment.m_size++;
+						}
+						position += 4 + Math.abs(len);
+					}
+					segment.m_writePosition = position;
+					segment.close();
+				}
+
+				if (segment.m_size > 0) {
+					m_segments.add(segment);
+					m_size += segment.m_size;
+				} else {
+					segment.delete();
+				}
+				m_nextSegmentId = id + 1;
+			}
+		}
+
+		if (m_size > 0) {
+			log.info("recover " + m_size + " spilled messages from " + m_dir);
+		}
+	}
+
+	public void report(Map<String, String> map) {
+		map.put("spill-queue", String.valueOf(m_size));
+		map.put("spill-in", String.valueOf(m_spilled.getAndSet(0)));
+		map.put("spill-out", String.valueOf(m_replayed.getAndSet(0)));
+		map.put("spill-evicted", String.valueOf(m_evicted.getAndSet(0)));
+		map.put("spill-dropped", String.valueOf(m_dropped.getAndSet(0)));
+	}
+
+	/**
+		* start a new segment for writing, dropping the oldest ones if the log is full
+		*/
+	private Segment roll() throws IOException {
+		while (m_segments.size() >= m_maxSegments) {
+			Segment oldest = m_segments.removeFirst();
+
+			m_size -= oldest.m_size;
+			m_evicted.addAndGet(oldest.m_size);
+			oldest.delete();
+		}
+
+		if (!m_segments.isEmpty()) {
+			Segment last = m_segments.getLast();
+
+			if (last != m_segments.getFirst()) {
+				last.close(); // keep the segment being read mapped
+			}
+		}
+
+		Segment segment = new Segment(m_nextSegmentId++, m_segmentSize);
+
+		segment.buffer();
+		m_segments.add(segment);
+		return segment;
+	}
+
+	private class Segment {
+		private File m_file;
+
+		private MappedByteBuffer m_buffer;
+
+		private int m_readPosition;
+
+		private int m_writePosition;
+
+		private int m_size;
+
+		private int m_capacity;
+
+		public Segment(long id, int capacity) {
+			m_file = new File(m_dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+			m_capacity = capacity;
+		}
+
+		public MappedByteBuffer buffer() throws IOException {
+			if (m_buffer == null) {
+				RandomAccessFile file = new RandomAccessFile(m_file, "rw");
+
+				try {
+					m_buffer = file.getChannel().map(MapMode.READ_WRITE, 0, m_capacity);
+				} finally {
+					file.close();
+				}
+			}
+			return m_buffer;
+		}
+
+		public void close() {
+			if (m_buffer != null) {
+				try {
+					CleanupHelper.cleanup(m_buffer);
+				} catch (Exception e) {
+					// ignore
+				}
+				m_buffer = null;
+			}
+		}
+
+		public void delete() {
+			close();
+
+			if (!m_file.delete()) {
+				log.warn("can't delete spill segment " + m_file);
+			}
+		}
+	}
+}
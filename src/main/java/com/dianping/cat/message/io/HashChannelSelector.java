@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import io.netty.channel.Channel;
+
+import java.util.List;
+
+/**
+	* Rendezvous hashing of the message id, a tree keeps its connection as long as that connection stays writable, and
+	* only the trees of a lost or blocked connection move to the others.
+	*/
+public class HashChannelSelector implements ChannelSelector {
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static int key(MessageTree tree) {
+		if (tree instanceof DefaultMessageTree && ((DefaultMessageTree) tree).getMessageIdPrefix() != null) {
+			long value = ((DefaultMessageTree) tree).getMessageIdValue(); // avoid formatting a binary id
+
+			return (int) (value ^ (value >>> 32));
+		} else {
+			return tree.getMessageId().hashCode();
+		}
+	}
+
+	@Override
+	public Channel select(List<Channel> channels, MessageTree tree) {
+		int size = channels.size();
+
+		if (size == 1) {
+			return channels.get(0);
+		}
+
+		int key = key(tree);
+		Channel selected = null;
+		int max = 0;
+
+		for (int i = 0; i < size; i++) {
+			Channel channel = channels.get(i);
+			int score = mix(key ^ mix(channel.id().hashCode()));
+
+			if (selected == null || score > max) {
+				selected = channel;
+				max = score;
+			}
+		}
+		return selected;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageTree;
+import io.netty.channel.Channel;
+
+import java.util.List;
+
+/**
+	* Picks the connection with the least bytes pending in its outbound buffer, so a slow collector gets less traffic.
+	*/
+public class LeastPendingChannelSelector implements ChannelSelector {
+
+	@Override
+	public Channel select(List<Channel> channels, MessageTree tree) {
+		int size = channels.size();
+		Channel selected = channels.get(0);
+
+		if (size > 1) {
+			long max = selected.bytesBeforeUnwritable();
+
+			for (int i = 1; i < size; i++) {
+				Channel channel = channels.get(i);
+				long bytes = channel.bytesBeforeUnwritable();
+
+				if (bytes > max) {
+					selected = channel;
+					max = bytes;
+				}
+			}
+		}
+		return selected;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageQueue;
+import com.dianping.cat.message.spi.MessageTree;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+	* Bounded lock-free multi-producer/single-consumer queue.
+	* <p>
+	* Each slot carries a sequence number, producers claim a slot by CAS on the tail cursor and publish it by
+	* advancing the slot sequence, so offer never takes a lock. Only the sender thread may call peek, poll and drainTo.
+	* The capacity is rounded up to the next power of two.
+	*/
+public class RingBufferMessageQueue implements MessageQueue {
+
+	private final int m_capacity;
+
+	private final int m_mask;
+
+	private final AtomicReferenceArray<MessageTree> m_buffer;
+
+	private final AtomicLongArray m_sequences;
+
+	private final PaddedAtomicLong m_tail = new PaddedAtomicLong();
+
+	private final PaddedAtomicLong m_head = new PaddedAtomicLong();
+
+	public RingBufferMessageQueue(int size) {
+		int capacity = 2;
+
+		while (capacity < size) {
+			capacity <<= 1;
+		}
+
+		m_capacity = capacity;
+		m_mask = capacity - 1;
+		m_buffer = new AtomicReferenceArray<MessageTree>(capacity);
+		m_sequences = new AtomicLongArray(capacity);
+
+		for (int i = 0; i < capacity; i++) {
+			m_sequences.set(i, i);
+		}
+	}
+
+	@Override
+	public int drainTo(List<MessageTree> trees, int maxElements) {
+		long head = m_head.get();
+		int count = 0;
+
+		while (count < maxElements) {
+			int index = (int) (head & m_mask);
+
+			if (m_sequences.get(index) != head + 1) {
+				break;
+			}
+
+			trees.add(m_buffer.get(index));
+			m_buffer.lazySet(index, null);
+			m_sequences.lazySet(index, head + m_capacity);
+			head++;
+			count++;
+		}
+
+		if (count > 0) {
+			m_head.lazySet(head);
+		}
+		return count;
+	}
+
+	public int getCapacity() {
+		return m_capacity;
+	}
+
+	@Override
+	public boolean offer(MessageTree tree) {
+		while (true) {
+			long tail = m_tail.get();
+			int index = (int) (tail & m_mask);
+			long diff = m_sequences.get(index) - tail;
+
+			if (diff == 0) {
+				if (m_tail.compareAndSet(tail, tail + 1)) {
+					m_buffer.lazySet(index, tree);
+					m_sequences.set(index, tail + 1); // publish the slot to consumer
+					return true;
+				}
+			} else if (diff < 0) {
+				return false; // full
+			}
+		}
+	}
+
+	@Override
+	public MessageTree peek() {
+		long head = m_head.get();
+		int index = (int) (head & m_mask);
+
+		if (m_sequences.get(index) == head + 1) {
+			return m_buffer.get(index);
+		} else {
+			return null;
+		}
+	}
+
+	@Override
+	public MessageTree poll() {
+		long head = m_head.get();
+		int index = (int) (head & m_mask);
+
+		if (m_sequences.get(index) == head + 1) {
+			MessageTree tree = m_buffer.get(index);
+
+			m_buffer.lazySet(index, null);
+			m_sequences.lazySet(index, head + m_capacity);
+			m_head.lazySet(head + 1);
+			return tree;
+		} else {
+			return null;
+		}
+	}
+
+	@Override
+	public int size() {
+		long size = m_tail.get() - m_head.get();
+
+		if (size < 0) {
+			return 0;
+		} else if (size > m_capacity) {
+			return m_capacity;
+		} else {
+			return (int) size;
+		}
+	}
+
+	/**
+		* keeps hot cursors of producers and consumer away from each other's cache line
+		*/
+	@SuppressWarnings("unused")
+	static class PaddedAtomicLong extends AtomicLong {
+		private static final long serialVersionUID = 1L;
+
+		private long m_p1, m_p2, m_p3, m_p4, m_p5, m_p6, m_p7;
+	}
+}
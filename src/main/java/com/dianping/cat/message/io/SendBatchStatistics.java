@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+	* Histograms of batch size and batch write latency of the sender, reset every time they are reported.
+	*/
+public class SendBatchStatistics {
+
+	private static final int[] SIZE_BOUNDS = { 1, 2, 4, 8, 16, 32, 64, 128, 256 };
+
+	private static final long[] LATENCY_BOUNDS = { 50, 100, 500, 1000, 5000, 10000, 50000 }; // in micros
+
+	private AtomicLongArray m_sizes = new AtomicLongArray(SIZE_BOUNDS.length + 1);
+
+	private AtomicLongArray m_latencies = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+
+	private AtomicLong m_batches = new AtomicLong();
+
+	private AtomicLong m_trees = new AtomicLong();
+
+	private AtomicLong m_bytes = new AtomicLong();
+
+	private static int indexOf(long[] bounds, long value) {
+		int len = bounds.length;
+
+		for (int i = 0; i < len; i++) {
+			if (value <= bounds[i]) {
+				return i;
+			}
+		}
+		return len;
+	}
+
+	private static int indexOf(int[] bounds, int value) {
+		int len = bounds.length;
+
+		for (int i = 0; i < len; i++) {
+			if (value <= bounds[i]) {
+				return i;
+			}
+		}
+		return len;
+	}
+
+	public void onBatch(int size, int bytes, long latencyInMicros) {
+		m_sizes.incrementAndGet(indexOf(SIZE_BOUNDS, size));
+		m_latencies.incrementAndGet(indexOf(LATENCY_BOUNDS, latencyInMicros));
+		m_batches.incrementAndGet();
+		m_trees.addAndGet(size);
+		m_bytes.addAndGet(bytes);
+	}
+
+	public void report(Map<String, String> map) {
+		long batches = m_batches.getAndSet(0);
+		long trees = m_trees.getAndSet(0);
+		long bytes = m_bytes.getAndSet(0);
+
+		map.put("batch-count", String.valueOf(batches));
+
+		if (batches > 0) {
+			map.put("batch-avg-size", String.valueOf(trees / batches));
+			map.put("batch-avg-bytes", String.valueOf(bytes / batches));
+		}
+
+		for (int i = 0; i <= SIZE_BOUNDS.length; i++) {
+			String key = i < SIZE_BOUNDS.length ? "batch-size-le-" + SIZE_BOUNDS[i] : "batch-size-gt-" + SIZE_BOUNDS[i - 1];
+
+			map.put(key, String.valueOf(m_sizes.getAndSet(i, 0)));
+		}
+
+		for (int i = 0; i <= LATENCY_BOUNDS.length; i++) {
+			String key = i < LATENCY_BOUNDS.length ? "batch-us-le-" + LATENCY_BOUNDS[i] : "batch-us-gt-" + LATENCY_BOUNDS[i - 1];
+
+			map.put(key, String.valueOf(m_latencies.getAndSet(i, 0)));
+		}
+	}
+}
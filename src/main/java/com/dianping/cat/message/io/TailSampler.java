@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.configuration.ClientConfigManager;
+import com.dianping.cat.configuration.ProblemLongType;
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.spi.MessageQueue;
+import com.dianping.cat.message.spi.MessageTree;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+	* Tail sampling stage of the sender, enabled by cat.tail.sampling.enabled.
+	* <p>
+	* Trees that failed or took longer than the long threshold of their type are sent at once, and their trace, the root
+	* message id, is remembered for a while. Other trees are handed to the sender thread through a lock free queue and
+	* held there in a ring for the sampling window. When they leave the ring, trees of a remembered trace are sent too,
+	* so the other parts of a slow or failed trace survive, and the rest go through the normal sampling.
+	* <p>
+	* The ring is owned by the sender thread, only {@link #hold(MessageTree)}, {@link #isInteresting(MessageTree)} and
+	* {@link #markKept(MessageTree)} are called by the application threads.
+	*/
+public class TailSampler {
+	private ClientConfigManager m_configManager;
+
+	private long m_windowMillis;
+
+	private MessageQueue m_incoming;
+
+	private MessageTree[] m_trees;
+
+	private long[] m_deadlines;
+
+	private int m_head;
+
+	private volatile int m_size;
+
+	private Map<String, Long> m_keptTraces = new ConcurrentHashMap<String, Long>();
+
+	private long m_nextPurge;
+
+	private LongAdder m_interesting = new LongAdder();
+
+	private LongAdder m_related = new LongAdder();
+
+	public TailSampler(ClientConfigManager configManager, long windowMillis, int capacity) {
+		m_configManager = configManager;
+		m_windowMillis = windowMillis;
+		m_incoming = new RingBufferMessageQueue(capacity);
+		m_trees = new MessageTree[capacity];
+		m_deadlines = new long[capacity];
+	}
+
+	/**
+		* hand the tree to the sender thread, which holds it for the sampling window
+		*
+		* @return false if the hand-off queue is full, the tree must be released at once
+		*/
+	public boolean hold(MessageTree tree) {
+		return m_incoming.offer(tree);
+	}
+
+	/**
+		* @return true if the root message failed or took longer than the long threshold of its type
+		*/
+	public boolean isInteresting(MessageTree tree) {
+		Message message = tree.getMessage();
+
+		if (!tree.canDiscard() || (message != null && !message.isSuccess())) {
+			return true;
+		} else if (message instanceof Transaction) {
+			Transaction transaction = (Transaction) message;
+			ProblemLongType longType = ProblemLongType.findByMessageType(transaction.getType());
+
+			if (longType != null) {
+				int duration = (int) transaction.getDurationInMillis();
+
+				return m_configManager.getLongThresholdByDuration(longType.getName(), duration) > 0;
+			}
+		}
+		return false;
+	}
+
+	/**
+		* @return true if another tree of the same trace is kept
+		*/
+	public boolean isKept(MessageTree tree) {
+		String trace = traceId(tree);
+
+		if (trace != null && m_keptTraces.containsKey(trace)) {
+			m_related.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+		* remember the trace of a tree that is sent at once, so that its other trees are kept as well. The message id of
+		* the tree must be assigned before, a root tree is the trace of its own.
+		*/
+	public void markKept(MessageTree tree) {
+		String trace = traceId(tree);
+
+		m_interesting.increment();
+
+		if (trace != null) {
+			m_keptTraces.put(trace, System.currentTimeMillis() + 2 * m_windowMillis);
+		}
+	}
+
+	/**
+		* move the handed off trees into the ring and take the oldest tree whose window is over, or the oldest tree if
+		* the ring is full. Called by the sender thread only.
+		*
+		* @return tree to release, null if there is none
+		*/
+	public MessageTree poll(long now) {
+		int capacity = m_trees.length;
+
+		while (true) {
+			if (m_size > 0 && (m_deadlines[m_head] <= now || (m_size == capacity && m_incoming.peek() != null))) {
+				MessageTree tree = m_trees[m_head];
+
+				m_trees[m_head] = null;
+				m_head = (m_head + 1) % capacity;
+				m_size--;
+				return tree;
+			}
+
+			MessageTree tree = m_incoming.poll();
+
+			if (tree == null) {
+				break;
+			}
+
+			int tail = (m_head + m_size) % capacity;
+
+			m_trees[tail] = tree;
+			m_deadlines[tail] = now > Long.MAX_VALUE - m_windowMillis ? now : now + m_windowMillis;
+			m_size++;
+		}
+
+		if (now >= m_nextPurge) {
+			m_nextPurge = now + m_windowMillis;
+			purge(now);
+		}
+		return null;
+	}
+
+	private void purge(long now) {
+		Iterator<Entry<String, Long>> it = m_keptTraces.entrySet().iterator();
+
+		while (it.hasNext()) {
+			if (it.next().getValue() <= now) {
+				it.remove();
+			}
+		}
+	}
+
+	public void report(Map<String, String> map) {
+		map.put("tail-held", String.valueOf(m_size + m_incoming.size()));
+		map.put("tail-kept-slow-or-failed", String.valueOf(m_interesting.sumThenReset()));
+		map.put("tail-kept-related", String.valueOf(m_related.sumThenReset()));
+	}
+
+	private String traceId(MessageTree tree) {
+		String root = tree.getRootMessageId();
+
+		return root != null ? root : tree.getMessageId();
+	}
+}
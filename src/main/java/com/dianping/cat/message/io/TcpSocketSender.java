@@ -19,21 +19,25 @@
 package com.dianping.cat.message.io;
 
 import com.dianping.cat.ApplicationSettings;
+import com.dianping.cat.Cat;
 import com.dianping.cat.analyzer.LocalAggregator;
 import com.dianping.cat.configuration.ClientConfigManager;
 import com.dianping.cat.message.Transaction;
 import com.dianping.cat.message.internal.DefaultTransaction;
 import com.dianping.cat.message.internal.MessageIdFactory;
+import com.dianping.cat.message.internal.MessagePool;
 import com.dianping.cat.message.spi.MessageCodec;
 import com.dianping.cat.message.spi.MessageQueue;
 import com.dianping.cat.message.spi.MessageStatistics;
 import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.codec.DictionaryMessageCodec;
 import com.dianping.cat.message.spi.codec.NativeMessageCodec;
 import com.dianping.cat.message.spi.internal.DefaultMessageTree;
 import com.dianping.cat.status.StatusExtension;
 import com.dianping.cat.status.StatusExtensionRegister;
 import com.dianping.cat.util.Threads;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 
 import lombok.extern.slf4j.Slf4j;
@@ -43,10 +47,14 @@ import org.springframework.stereotype.Component;
 import com.dianping.cat.util.Threads.Task;
 
 
+import java.io.File;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
@@ -61,7 +69,8 @@ public class TcpSocketSender implements Task, MessageSender {
 
 	public static final long HOUR = 1000 * 60 * 60L;
 
-	private MessageCodec m_codec = new NativeMessageCodec();
+	// read by the heartbeat thread, channels compare by identity
+	private Map<Channel, MessageCodec> m_codecs = new ConcurrentHashMap<Channel, MessageCodec>();
 
 	@Autowired
 	private MessageStatistics m_statistics;
@@ -72,9 +81,49 @@ public class TcpSocketSender implements Task, MessageSender {
 	@Autowired
 	private MessageIdFactory messageIdFactory;
 
-	private MessageQueue m_queue = new DefaultMessageQueue(SIZE);
+	private static final int MAX_DRAIN_SIZE = 32;
 
-	private MessageQueue m_atomicQueue = new DefaultMessageQueue(SIZE);
+	private static final int BATCH_SIZE = Math.max(1, ApplicationSettings.getSenderBatchSize());
+
+	private static final int BATCH_BYTES = ApplicationSettings.getSenderBatchBytes();
+
+	private static final long BATCH_NANOS = ApplicationSettings.getSenderBatchMicros() * 1000L;
+
+	private static final int SPILL_REPLAY_RATE = Math.max(1, ApplicationSettings.getSpillReplayRate());
+
+	private static final int SPILL_HANDOFF_SIZE = 1024;
+
+	private static final long MAX_WAIT_NANOS = 100 * 1000 * 1000L; // 100 ms, bounds the atomic queue merge check delay
+
+	private MessageQueue m_queue = new RingBufferMessageQueue(SIZE);
+
+	private MessageQueue m_atomicQueue = new RingBufferMessageQueue(SIZE);
+
+	private List<MessageTree> m_drained = new ArrayList<MessageTree>(MAX_DRAIN_SIZE);
+
+	private List<Channel> m_channels = new ArrayList<Channel>();
+
+	private List<Channel> m_writableChannels = new ArrayList<Channel>();
+
+	private DiskSpillQueue m_spillQueue;
+
+	private MessageQueue m_spillHandoff = new RingBufferMessageQueue(SPILL_HANDOFF_SIZE);
+
+	private AdaptiveSampler m_sampler;
+
+	private TailSampler m_tailSampler;
+
+	private double m_replayPermits;
+
+	private long m_replayTime = System.nanoTime();
+
+	private int m_replayIndex;
+
+	private ChannelSelector m_channelSelector = createChannelSelector(ApplicationSettings.getSenderSharding());
+
+	private SendBatchStatistics m_batchStatistics = new SendBatchStatistics();
+
+	private WaitStrategy m_waitStrategy = createWaitStrategy(ApplicationSettings.getSenderWaitStrategy());
 
 	private ChannelManager m_channelManager;
 
@@ -86,6 +135,47 @@ public class TcpSocketSender implements Task, MessageSender {
 
 
 
+	private static MessageCodec createCodec(String id) {
+		if (DictionaryMessageCodec.ID.equalsIgnoreCase(id)) {
+			return new DictionaryMessageCodec();
+		} else {
+			return new NativeMessageCodec();
+		}
+	}
+
+	private static ChannelSelector createChannelSelector(String name) {
+		if ("least-pending".equalsIgnoreCase(name)) {
+			return new LeastPendingChannelSelector();
+		} else {
+			return new HashChannelSelector();
+		}
+	}
+
+	private static WaitStrategy createWaitStrategy(String name) {
+		if ("busy-spin".equalsIgnoreCase(name)) {
+			return new BusySpinWaitStrategy();
+		} else if ("yielding".equalsIgnoreCase(name)) {
+			return new YieldingWaitStrategy();
+		} else {
+			return new BlockingWaitStrategy();
+		}
+	}
+
+	/**
+		* root trees get a binary id, it is formatted only if someone asks for the text form
+		*/
+	private void assignMessageId(MessageTree tree) {
+		if (tree instanceof DefaultMessageTree) {
+			DefaultMessageTree t = (DefaultMessageTree) tree;
+
+			if (!t.hasMessageId()) {
+				t.setMessageId(messageIdFactory.getIdPrefix(), messageIdFactory.getNextIdValue());
+			}
+		} else if (tree.getMessageId() == null) {
+			tree.setMessageId(messageIdFactory.getNextId());
+		}
+	}
+
 	@Override
 	public String getName() {
 		return "TcpSocketSender";
@@ -94,7 +184,27 @@ public class TcpSocketSender implements Task, MessageSender {
 	@Override
 	public void initialize(List<InetSocketAddress> addresses) {
 
-		m_channelManager = new ChannelManager(addresses, clientConfigManager, messageIdFactory);
+		m_channelManager = new ChannelManager(addresses, clientConfigManager);
+
+		if (ApplicationSettings.getSamplingTreesPerSecond() > 0) {
+			m_sampler = new AdaptiveSampler(ApplicationSettings.getSamplingTreesPerSecond(),
+							ApplicationSettings.getSamplingMinPerKey());
+			StatusExtensionRegister.getInstance().register(m_sampler);
+		}
+
+		if (ApplicationSettings.isTailSamplingEnabled()) {
+			m_tailSampler = new TailSampler(clientConfigManager, ApplicationSettings.getTailSamplingWindowMs(),
+							Math.max(1, ApplicationSettings.getTailSamplingCapacity()));
+		}
+
+		if (ApplicationSettings.isSpillEnabled()) {
+			File dir = new File(Cat.getCatHome(), "spill-" + clientConfigManager.getDomain().getId());
+			DiskSpillQueue spillQueue = new DiskSpillQueue(dir, ApplicationSettings.getSpillMaxMb() * 1024L * 1024L);
+
+			if (spillQueue.initialize()) {
+				m_spillQueue = spillQueue;
+			}
+		}
 
 		Threads.forGroup("cat").start(this);
 		Threads.forGroup("cat").start(m_channelManager);
@@ -124,12 +234,77 @@ public class TcpSocketSender implements Task, MessageSender {
 				Map<String, String> map = new HashMap<String, String>();
 
 				map.put("msg-queue", String.valueOf(m_queue.size()));
-				map.put("atomic-queue", String.valueOf(m_queue.size()));
+				map.put("atomic-queue", String.valueOf(m_atomicQueue.size()));
+				m_batchStatistics.report(map);
+
+				if (m_tailSampler != null) {
+					m_tailSampler.report(map);
+				}
+
+				if (m_spillQueue != null) {
+					m_spillQueue.report(map);
+				}
+
+				reportDictionaries(map);
 				return map;
 			}
 		});
 	}
 
+	/**
+		* usage of the fullest NT2 dictionary and number of dictionaries started over, over all connections
+		*/
+	private void reportDictionaries(Map<String, String> map) {
+		int usage = -1;
+		int resets = 0;
+
+		for (MessageCodec codec : m_codecs.values()) {
+			if (codec instanceof DictionaryMessageCodec) {
+				DictionaryMessageCodec dictionary = (DictionaryMessageCodec) codec;
+
+				usage = Math.max(usage, dictionary.getDictionaryUsage());
+				resets += dictionary.getAndClearResets();
+			}
+		}
+
+		if (usage >= 0) {
+			map.put("dictionary-usage", String.valueOf(usage));
+			map.put("dictionary-resets", String.valueOf(resets));
+		}
+	}
+
+	/**
+		* hand the tree to the sender thread for spilling, application threads never write the spill files themselves
+		*/
+	private void overflow(MessageTree tree) {
+		if (m_spillQueue == null || !m_spillHandoff.offer(tree)) {
+			logQueueFullInfo(tree);
+		}
+	}
+
+	/**
+		* write the handed off trees to the spill queue, called by the sender thread only
+		*/
+	void spillHandedOff() {
+		if (m_spillQueue != null) {
+			MessageTree tree;
+
+			while ((tree = m_spillHandoff.poll()) != null) {
+				spill(tree);
+			}
+		}
+	}
+
+	private void spill(MessageTree tree) {
+		assignMessageId(tree);
+
+		if (m_spillQueue.offer(tree)) {
+			MessagePool.recycle(tree);
+		} else {
+			logQueueFullInfo(tree);
+		}
+	}
+
 	private void logQueueFullInfo(MessageTree tree) {
 		if (m_statistics != null) {
 			m_statistics.onOverflowed(tree);
@@ -172,13 +347,15 @@ public class TcpSocketSender implements Task, MessageSender {
 			boolean result = m_atomicQueue.offer(tree);
 
 			if (!result) {
-				logQueueFullInfo(tree);
+				overflow(tree);
 			}
 		} else {
 			boolean result = m_queue.offer(tree);
 
-			if (!result) {
-				logQueueFullInfo(tree);
+			if (result) {
+				m_waitStrategy.signal();
+			} else {
+				overflow(tree);
 			}
 		}
 	}
@@ -190,7 +367,7 @@ public class TcpSocketSender implements Task, MessageSender {
 				boolean result = m_queue.offer(tree);
 
 				if (!result) {
-					logQueueFullInfo(tree);
+					overflow(tree);
 				}
 			} else {
 				break;
@@ -200,19 +377,25 @@ public class TcpSocketSender implements Task, MessageSender {
 
 	private void processNormalMessage() {
 		while (true) {
-			ChannelFuture channel = m_channelManager.channel();
+			long now = System.currentTimeMillis();
 
-			if (channel != null) {
+			if (m_sampler != null) {
+				m_sampler.tick(now);
+			}
+			releaseHeldTrees(now);
+			spillHandedOff();
+			m_channelManager.channels(m_channels);
+
+			if (!m_channels.isEmpty()) {
 				try {
-					MessageTree tree = m_queue.poll();
+					int count = sendBatch(m_channels);
 
-					if (tree != null) {
-						sendInternal(channel, tree);
-						tree.setMessage(null);
-					} else {
-						try {
-							Thread.sleep(5);
-						} catch (Exception e) {
+					count += replaySpill(m_channels);
+
+					if (count == 0) {
+						m_waitStrategy.waitFor(m_queue, MAX_WAIT_NANOS);
+
+						if (Thread.interrupted()) {
 							m_active = false;
 						}
 						break;
@@ -239,6 +422,7 @@ public class TcpSocketSender implements Task, MessageSender {
 			processNormalMessage();
 		}
 
+		releaseHeldTrees(Long.MAX_VALUE);
 		processAtomicMessage();
 
 		while (true) {
@@ -249,6 +433,9 @@ public class TcpSocketSender implements Task, MessageSender {
 
 				if (channel != null) {
 					sendInternal(channel, tree);
+					MessagePool.recycle(tree);
+				} else if (m_spillQueue != null) {
+					spill(tree); // keep it on disk for next start
 				} else {
 					offer(tree);
 				}
@@ -256,18 +443,69 @@ public class TcpSocketSender implements Task, MessageSender {
 				break;
 			}
 		}
+		spillHandedOff();
+	}
+
+	/**
+		* release the held trees whose tail sampling window is over
+		*/
+	void releaseHeldTrees(long now) {
+		TailSampler tailSampler = m_tailSampler;
+
+		if (tailSampler != null) {
+			MessageTree tree;
+
+			while ((tree = tailSampler.poll(now)) != null) {
+				release(tailSampler, tree);
+			}
+		}
+	}
+
+	private void release(TailSampler tailSampler, MessageTree tree) {
+		if (tailSampler.isKept(tree)) {
+			offer(tree);
+		} else {
+			sample(tree);
+		}
 	}
 
 	@Override
 	public void send(MessageTree tree) {
 		if (!clientConfigManager.isBlock()) {
-			double sampleRatio = clientConfigManager.getSampleRatio();
+			TailSampler tailSampler = m_tailSampler;
 
-			if (tree.canDiscard() && sampleRatio < 1.0 && (!tree.isHitSample())) {
-				processTreeInClient(tree);
+			if (tailSampler != null && (m_sampler != null || clientConfigManager.getSampleRatio() < 1.0)) {
+				if (tailSampler.isInteresting(tree)) {
+					assignMessageId(tree); // a root tree is the trace of its own, its id is needed to match the others
+					tailSampler.markKept(tree);
+					offer(tree);
+				} else if (!tailSampler.hold(tree)) {
+					release(tailSampler, tree);
+				}
 			} else {
+				sample(tree);
+			}
+		}
+	}
+
+	private void sample(MessageTree tree) {
+		AdaptiveSampler sampler = m_sampler;
+
+		if (sampler != null) {
+			if (sampler.sample(tree)) {
 				offer(tree);
+			} else {
+				processTreeInClient(tree);
 			}
+			return;
+		}
+
+		double sampleRatio = clientConfigManager.getSampleRatio();
+
+		if (tree.canDiscard() && sampleRatio < 1.0 && (!tree.isHitSample())) {
+			processTreeInClient(tree);
+		} else {
+			offer(tree);
 		}
 	}
 
@@ -275,20 +513,165 @@ public class TcpSocketSender implements Task, MessageSender {
 		LocalAggregator.aggregate(tree);
 	}
 
-	public void sendInternal(ChannelFuture channel, MessageTree tree) {
-		if (tree.getMessageId() == null) {
-			tree.setMessageId(messageIdFactory.getNextId());
+	/**
+		* write trees to the channels until the queue is drained, the batch size, bytes or time budget is used up or no
+		* channel is writable any more, then flush each channel once.
+		*
+		* @param channels writable channels, the target of each tree is picked by the channel selector
+		* @return number of trees sent
+		*/
+	int sendBatch(List<Channel> channels) {
+		long start = System.nanoTime();
+		int count = 0;
+		int bytes = 0;
+
+		m_writableChannels.clear();
+		m_writableChannels.addAll(channels);
+
+		try {
+			while (count < BATCH_SIZE && bytes < BATCH_BYTES) {
+				int drained = m_queue.drainTo(m_drained, Math.min(MAX_DRAIN_SIZE, BATCH_SIZE - count));
+
+				if (drained == 0) {
+					break;
+				}
+
+				for (int i = 0; i < drained; i++) {
+					MessageTree tree = m_drained.get(i);
+
+					try {
+						assignMessageId(tree); // the channel selector hashes the id
+
+						bytes += writeInternal(m_channelSelector.select(m_writableChannels, tree), tree);
+					} catch (Throwable t) {
+						// drop only the broken tree, the rest of the batch is still sent
+						log.error("Error when encoding message tree " + tree.getMessageId() + ", it is dropped!", t);
+					}
+
+					if (MessagePool.isEnabled()) {
+						MessagePool.recycle(tree);
+					} else {
+						tree.setMessage(null);
+					}
+				}
+				m_drained.clear();
+				count += drained;
+
+				if (System.nanoTime() - start >= BATCH_NANOS || !retainWritable(m_writableChannels)) {
+					break;
+				}
+			}
+		} finally {
+			m_drained.clear();
+
+			if (count > 0) {
+				for (Channel channel : channels) {
+					channel.flush();
+				}
+				m_batchStatistics.onBatch(count, bytes, (System.nanoTime() - start) / 1000L);
+			}
+		}
+		return count;
+	}
+
+	/**
+		* send spilled trees at the replay rate, in round robin over the channels still writable
+		*
+		* @return number of trees sent
+		*/
+	private int replaySpill(List<Channel> channels) {
+		if (m_spillQueue == null || m_spillQueue.isEmpty()) {
+			return 0;
 		}
 
-		ByteBuf buf = m_codec.encode(tree);
+		long now = System.nanoTime();
+		int count = 0;
+
+		double burst = Math.max(1, SPILL_REPLAY_RATE / 10); // at most 100 ms of permits
+
+		m_replayPermits = Math.min(burst, m_replayPermits + (now - m_replayTime) * SPILL_REPLAY_RATE / 1e9);
+		m_replayTime = now;
+		m_writableChannels.clear();
+		m_writableChannels.addAll(channels);
+
+		while (m_replayPermits >= 1 && retainWritable(m_writableChannels)) {
+			Channel channel = m_writableChannels.get(m_replayIndex++ % m_writableChannels.size());
+			ByteBuf buf = m_spillQueue.poll(channel.alloc());
+
+			if (buf == null) {
+				break;
+			}
+
+			int size = buf.readableBytes();
+
+			channel.write(buf, channel.voidPromise());
+			m_replayPermits--;
+			count++;
+
+			if (m_statistics != null) {
+				m_statistics.onBytes(size);
+			}
+		}
+
+		if (count > 0) {
+			for (Channel channel : channels) {
+				channel.flush();
+			}
+		}
+		return count;
+	}
+
+	/**
+		* @return false if none of the channels is writable
+		*/
+	private boolean retainWritable(List<Channel> channels) {
+		for (int i = channels.size() - 1; i >= 0; i--) {
+			if (!channels.get(i).isWritable()) {
+				channels.remove(i);
+			}
+		}
+		return !channels.isEmpty();
+	}
+
+	public void sendInternal(ChannelFuture channel, MessageTree tree) {
+		writeInternal(channel.channel(), tree);
+		channel.channel().flush();
+	}
+
+	private int writeInternal(Channel channel, MessageTree tree) {
+		assignMessageId(tree);
+
+		ByteBuf buf = getCodec(channel).encode(tree);
 
 		int size = buf.readableBytes();
 
-		channel.channel().writeAndFlush(buf);
+		channel.write(buf, channel.voidPromise());
 
 		if (m_statistics != null) {
 			m_statistics.onBytes(size);
 		}
+		return size;
+	}
+
+	/**
+		* codec state like the NT2 dictionary is scoped to one connection, so each channel has its own codec
+		*/
+	private MessageCodec getCodec(Channel channel) {
+		MessageCodec codec = m_codecs.get(channel);
+
+		if (codec == null) {
+			Iterator<Channel> it = m_codecs.keySet().iterator();
+
+			while (it.hasNext()) {
+				if (!it.next().isOpen()) {
+					it.remove();
+				}
+			}
+
+			codec = createCodec(ApplicationSettings.getCodec());
+			m_codecs.put(channel, codec);
+		}
+		return codec;
 	}
 
 	private boolean shouldMerge(MessageQueue queue) {
@@ -307,6 +690,7 @@ public class TcpSocketSender implements Task, MessageSender {
 	@Override
 	public void shutdown() {
 		m_active = false;
+		m_waitStrategy.signal();
 		m_channelManager.shutdown();
 	}
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageQueue;
+
+/**
+	* Strategy used by the sender thread to wait for new messages when its queue is drained.
+	*/
+public interface WaitStrategy {
+
+	/**
+		* wait until the queue has messages, the timeout elapses or the thread is interrupted
+		*
+		* @param queue        queue consumed by current thread
+		* @param timeoutNanos max time to wait
+		*/
+	public void waitFor(MessageQueue queue, long timeoutNanos);
+
+	/**
+		* wake up the consumer blocked in waitFor, called by producers after a successful offer
+		*/
+	public void signal();
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageQueue;
+
+/**
+	* Spins for a while then yields the CPU, trades some CPU for lower latency than the blocking strategy.
+	*/
+public class YieldingWaitStrategy implements WaitStrategy {
+
+	private static final int SPIN_TRIES = 100;
+
+	@Override
+	public void waitFor(MessageQueue queue, long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		int counter = SPIN_TRIES;
+
+		while (queue.peek() == null && !Thread.currentThread().isInterrupted()) {
+			if (counter > 0) {
+				counter--;
+			} else {
+				Thread.yield();
+
+				if (System.nanoTime() - deadline >= 0) {
+					break;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void signal() {
+	}
+}
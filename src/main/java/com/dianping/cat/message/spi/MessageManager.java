@@ -20,6 +20,7 @@ package com.dianping.cat.message.spi;
 
 import com.dianping.cat.configuration.ClientConfigManager;
 import com.dianping.cat.message.Message;
+import com.dianping.cat.message.MessageContext;
 import com.dianping.cat.message.Transaction;
 
 /**
@@ -31,6 +32,13 @@ import com.dianping.cat.message.Transaction;
 public interface MessageManager {
 	public void add(Message message);
 
+	/**
+		* Capture the message context of current thread, so that it can be restored in another thread.
+		*
+		* @return snapshot of current thread, empty if no transaction is open
+		*/
+	public MessageContext captureContext();
+
 	/**
 		* Be triggered when a transaction ends, whatever it's the root transaction or nested transaction. However, if it's
 		* the root transaction then it will be flushed to back-end CAT server asynchronously.
@@ -92,6 +100,14 @@ public interface MessageManager {
 		*/
 	public void reset();
 
+	/**
+		* Restore a captured message context in current thread, trees logged until the scope is closed are linked to it.
+		*
+		* @param context snapshot captured by {@link #captureContext()}
+		* @return scope to close when the work of current thread is done
+		*/
+	public MessageContext.Scope restoreContext(MessageContext context);
+
 	/**
 		* Do setup for current thread environment in order to prepare thread local objects.
 		*/
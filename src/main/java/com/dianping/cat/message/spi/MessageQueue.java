@@ -18,7 +18,18 @@
  */
 package com.dianping.cat.message.spi;
 
+import java.util.List;
+
 public interface MessageQueue {
+	/**
+		* move up to <code>maxElements</code> trees into <code>trees</code> without blocking
+		*
+		* @param trees       target list
+		* @param maxElements max number of trees to move
+		* @return number of trees moved
+		*/
+	public int drainTo(List<MessageTree> trees, int maxElements);
+
 	public boolean offer(MessageTree tree);
 
 	public MessageTree peek();
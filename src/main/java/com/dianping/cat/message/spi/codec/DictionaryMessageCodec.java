@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.spi.codec;
+
+import com.dianping.cat.message.*;
+import com.dianping.cat.message.internal.*;
+import com.dianping.cat.message.spi.MessageCodec;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+	* Native message tree version 2.
+	* <p>
+	* Same message layout as NT1, but type, name, status and header strings go through a string dictionary scoped to
+	* one connection: the first use of a string defines it, later uses only send its varint id. Message ids are sent as
+	* a dictionary prefix plus a varint index, timestamps as zigzag varint deltas to the previous timestamp of the tree.
+	* <p>
+	* Each instance keeps the dictionary of one connection, so it is not thread safe, and {@link #reset()} must be called
+	* on both sides whenever the connection changes. Once the dictionary is full, the encoder starts a new one with the
+	* next tree and marks that tree, so the decoder drops its dictionary at the same point.
+	*/
+public class DictionaryMessageCodec implements MessageCodec {
+
+	public static final String ID = "NT2"; // native message tree version 2
+
+	private static final byte[] ID_BYTES = ID.getBytes(StandardCharsets.US_ASCII);
+
+	private static final int MAX_DICTIONARY_SIZE = 8192;
+
+	private static final int MAX_ENTRY_LENGTH = 256;
+
+	private static final int RAW = 0;
+
+	private static final int DEFINE = 1;
+
+	private static final int REFERENCE = 2;
+
+	private static final int RESET = 3; // a string tag of kind 3 and length 0, written before the domain
+
+	private Map<String, Integer> m_encodeDictionary = new HashMap<String, Integer>(1024);
+
+	private List<String> m_encodeEntries = new ArrayList<String>(1024);
+
+	private List<String> m_decodeEntries = new ArrayList<String>(1024);
+
+	private long m_encodeTimestamp;
+
+	private long m_decodeTimestamp;
+
+	private boolean m_resetPending;
+
+	private AtomicInteger m_resets = new AtomicInteger();
+
+	@Override
+	public MessageTree decode(ByteBuf buf) {
+		buf.readInt(); // read the length of the message tree
+
+		DefaultMessageTree tree = new DefaultMessageTree();
+		byte[] version = new byte[3];
+
+		buf.readBytes(version);
+
+		if (!ID.equals(new String(version, StandardCharsets.US_ASCII))) {
+			throw new RuntimeException(String.format("Unrecognized version(%s) for binary message codec!", new String(version)));
+		}
+
+		if (buf.getByte(buf.readerIndex()) == RESET) {
+			buf.skipBytes(1);
+			m_decodeEntries.clear();
+		}
+
+		tree.setDomain(readString(buf));
+		tree.setHostName(readString(buf));
+		tree.setIpAddress(readString(buf));
+		tree.setThreadGroupName(readString(buf));
+		tree.setThreadId(readString(buf));
+		tree.setThreadName(readString(buf));
+		tree.setMessageId(readMessageId(buf));
+		tree.setParentMessageId(readMessageId(buf));
+		tree.setRootMessageId(readMessageId(buf));
+		tree.setSessionToken(readString(buf));
+
+		m_decodeTimestamp = 0;
+		tree.setMessage(decodeMessage(tree, buf));
+		tree.setBuffer(buf);
+
+		return tree;
+	}
+
+	private Message decodeMessage(MessageTree tree, ByteBuf buf) {
+		Stack<DefaultTransaction> parents = new Stack<DefaultTransaction>();
+		Message root = null;
+
+		while (buf.readableBytes() > 0) {
+			char ch = (char) buf.readByte();
+
+			if (ch == 't') {
+				long timestamp = readTimestamp(buf);
+				DefaultTransaction t = new DefaultTransaction(readString(buf), readString(buf));
+
+				t.setTimestamp(timestamp);
+
+				if (parents.isEmpty()) {
+					root = t;
+				} else {
+					parents.peek().addChild(t);
+				}
+				parents.push(t);
+				tree.getTransactions().add(t);
+			} else if (ch == 'T') {
+				DefaultTransaction t = parents.pop();
+
+				t.setStatus(readString(buf));
+				t.addData(readRawString(buf));
+				t.setDurationInMicros(readVarint(buf));
+			} else {
+				long timestamp = readTimestamp(buf);
+				String type = readString(buf);
+				String name = readString(buf);
+				AbstractMessage m;
+
+				switch (ch) {
+				case 'E':
+					m = new DefaultEvent(type, name);
+					tree.getEvents().add((Event) m);
+					break;
+				case 'M':
+					m = new DefaultMetric(type, name);
+					tree.getMetrics().add((Metric) m);
+					break;
+				case 'H':
+					m = new DefaultHeartbeat(type, name);
+					tree.getHeartbeats().add((Heartbeat) m);
+					break;
+				case 'L':
+					m = new DefaultTrace(type, name);
+					break;
+				default:
+					throw new RuntimeException(String.format("Unsupported message type(%s).", ch));
+				}
+
+				m.setTimestamp(timestamp);
+				m.setStatus(readString(buf));
+				m.addData(readRawString(buf));
+
+				if (parents.isEmpty()) {
+					root = m;
+				} else {
+					parents.peek().addChild(m);
+				}
+			}
+		}
+
+		return root;
+	}
+
+	@Override
+	public ByteBuf encode(MessageTree tree) {
+		ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(4 * 1024);
+
+		if (m_encodeEntries.size() >= MAX_DICTIONARY_SIZE) {
+			m_encodeDictionary.clear();
+			m_encodeEntries.clear();
+			m_resetPending = true;
+			m_resets.incrementAndGet();
+		}
+
+		int entries = m_encodeEntries.size();
+
+		try {
+			buf.writeInt(0); // place-holder
+			buf.writeBytes(ID_BYTES);
+
+			if (m_resetPending) {
+				buf.writeByte(RESET);
+			}
+
+			writeString(buf, tree.getDomain());
+			writeString(buf, tree.getHostName());
+			writeString(buf, tree.getIpAddress());
+			writeString(buf, tree.getThreadGroupName());
+			writeString(buf, tree.getThreadId());
+			writeString(buf, tree.getThreadName());
+			writeMessageId(buf, tree.getMessageId());
+			writeMessageId(buf, tree.getParentMessageId());
+			writeMessageId(buf, tree.getRootMessageId());
+			writeString(buf, tree.getSessionToken());
+
+			Message msg = tree.getMessage();
+
+			m_encodeTimestamp = 0;
+
+			if (msg != null) {
+				encodeMessage(buf, msg);
+			}
+
+			buf.setInt(0, buf.readableBytes() - 4); // reset the message size
+			m_resetPending = false; // a tree that fails to encode is never sent, the next one carries the mark
+			return buf;
+		} catch (RuntimeException e) {
+			// the peer will never see this tree, forget the strings it defined
+			while (m_encodeEntries.size() > entries) {
+				m_encodeDictionary.remove(m_encodeEntries.remove(m_encodeEntries.size() - 1));
+			}
+			buf.release();
+
+			throw e;
+		}
+	}
+
+	private void encodeMessage(ByteBuf buf, Message msg) {
+		if (msg instanceof Transaction) {
+			Transaction transaction = (Transaction) msg;
+			List<Message> children = transaction.getChildren();
+			int len = children.size();
+
+			buf.writeByte('t');
+			writeTimestamp(buf, msg.getTimestamp());
+			writeString(buf, msg.getType());
+			writeString(buf, msg.getName());
+
+			for (int i = 0; i < len; i++) {
+				Message child = children.get(i);
+
+				if (child != null) {
+					encodeMessage(buf, child);
+				}
+			}
+
+			buf.writeByte('T');
+			writeString(buf, msg.getStatus());
+			writeRawString(buf, msg.getData());
+			writeVarint(buf, transaction.getDurationInMicros());
+		} else {
+			if (msg instanceof Event) {
+				buf.writeByte('E');
+			} else if (msg instanceof Metric) {
+				buf.writeByte('M');
+			} else if (msg instanceof Heartbeat) {
+				buf.writeByte('H');
+			} else if (msg instanceof Trace) {
+				buf.writeByte('L');
+			} else {
+				throw new RuntimeException(String.format("Unsupported message(%s).", msg));
+			}
+
+			writeTimestamp(buf, msg.getTimestamp());
+			writeString(buf, msg.getType());
+			writeString(buf, msg.getName());
+			writeString(buf, msg.getStatus());
+			writeRawString(buf, msg.getData());
+		}
+	}
+
+	public int getDictionarySize() {
+		return m_encodeEntries.size();
+	}
+
+	/**
+		* @return how full the encode dictionary is, in percent
+		*/
+	public int getDictionaryUsage() {
+		return m_encodeEntries.size() * 100 / MAX_DICTIONARY_SIZE;
+	}
+
+	/**
+		* @return number of times the full encode dictionary was started over since the last call
+		*/
+	public int getAndClearResets() {
+		return m_resets.getAndSet(0);
+	}
+
+	private String readMessageId(ByteBuf buf) {
+		long value = readVarint(buf);
+
+		if (value == 0) {
+			return null;
+		} else if (value == 1) {
+			return readRawString(buf);
+		} else {
+			String prefix = readString(buf);
+
+			return prefix + (value - 2);
+		}
+	}
+
+	private String readRawString(ByteBuf buf) {
+		long tag = readVarint(buf);
+
+		if ((tag & 3) != RAW) {
+			throw new RuntimeException("Malformed raw string tag " + tag + "!");
+		}
+		return readUtf8(buf, (int) (tag >>> 2));
+	}
+
+	private String readString(ByteBuf buf) {
+		long tag = readVarint(buf);
+		int value = (int) (tag >>> 2);
+
+		switch ((int) (tag & 3)) {
+		case RAW:
+			return readUtf8(buf, value);
+		case DEFINE:
+			String str = readUtf8(buf, value);
+
+			m_decodeEntries.add(str);
+			return str;
+		case REFERENCE:
+			if (value >= m_decodeEntries.size()) {
+				throw new RuntimeException("Unknown dictionary entry " + value + ", codec is out of sync!");
+			}
+			return m_decodeEntries.get(value);
+		default:
+			throw new RuntimeException("Malformed string tag " + tag + "!");
+		}
+	}
+
+	private long readTimestamp(ByteBuf buf) {
+		long zigzag = readVarint(buf);
+
+		m_decodeTimestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+		return m_decodeTimestamp;
+	}
+
+	private String readUtf8(ByteBuf buf, int len) {
+		if (len == 0) {
+			return "";
+		}
+
+		String str = buf.toString(buf.readerIndex(), len, StandardCharsets.UTF_8);
+
+		buf.skipBytes(len);
+		return str;
+	}
+
+	private long readVarint(ByteBuf buf) {
+		int shift = 0;
+		long result = 0;
+
+		while (shift < 64) {
+			final byte b = buf.readByte();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+			shift += 7;
+		}
+
+		throw new RuntimeException("Malformed variable int!");
+	}
+
+	/**
+		* forget the dictionary, must be called when the codec is bound to a new connection
+		*/
+	@Override
+	public void reset() {
+		m_encodeDictionary.clear();
+		m_encodeEntries.clear();
+		m_decodeEntries.clear();
+		m_resetPending = false;
+	}
+
+	private void writeLiteral(ByteBuf buf, CharSequence str, int kind) {
+		int len = ByteBufUtil.utf8Bytes(str);
+
+		writeVarint(buf, ((long) len << 2) | kind);
+		ByteBufUtil.writeUtf8(buf, str);
+	}
+
+	private void writeMessageId(ByteBuf buf, String id) {
+		if (id == null || id.length() == 0) {
+			writeVarint(buf, 0);
+			return;
+		}
+
+		int pos = id.lastIndexOf('-');
+		long index = pos < 0 ? -1 : parseIndex(id, pos + 1);
+
+		if (index >= 0) {
+			writeVarint(buf, index + 2);
+			writeString(buf, id.substring(0, pos + 1));
+		} else {
+			writeVarint(buf, 1);
+			writeRawString(buf, id);
+		}
+	}
+
+	/**
+		* @return the decimal index after the last '-', or -1 if it would not be printed back the same way
+		*/
+	private long parseIndex(String id, int start) {
+		int len = id.length();
+
+		if (start >= len || len - start > 18 || (id.charAt(start) == '0' && len - start > 1)) {
+			return -1;
+		}
+
+		long index = 0;
+
+		for (int i = start; i < len; i++) {
+			char ch = id.charAt(i);
+
+			if (ch < '0' || ch > '9') {
+				return -1;
+			}
+			index = index * 10 + (ch - '0');
+		}
+		return index;
+	}
+
+	private void writeRawString(ByteBuf buf, Object data) {
+		CharSequence str = data instanceof CharSequence ? (CharSequence) data : String.valueOf(data);
+
+		if (str.length() == 0) {
+			writeVarint(buf, 0);
+		} else {
+			writeLiteral(buf, str, RAW);
+		}
+	}
+
+	private void writeString(ByteBuf buf, String str) {
+		if (str == null || str.length() == 0) {
+			writeVarint(buf, 0);
+			return;
+		}
+
+		Integer id = m_encodeDictionary.get(str);
+
+		if (id != null) {
+			writeVarint(buf, ((long) id << 2) | REFERENCE);
+		} else if (m_encodeEntries.size() < MAX_DICTIONARY_SIZE && str.length() <= MAX_ENTRY_LENGTH) {
+			m_encodeDictionary.put(str, m_encodeEntries.size());
+			m_encodeEntries.add(str);
+			writeLiteral(buf, str, DEFINE);
+		} else {
+			writeLiteral(buf, str, RAW);
+		}
+	}
+
+	private void writeTimestamp(ByteBuf buf, long timestamp) {
+		long delta = timestamp - m_encodeTimestamp;
+
+		writeVarint(buf, (delta << 1) ^ (delta >> 63));
+		m_encodeTimestamp = timestamp;
+	}
+
+	private void writeVarint(ByteBuf buf, long value) {
+		while (true) {
+			if ((value & ~0x7FL) == 0) {
+				buf.writeByte((byte) value);
+				return;
+			} else {
+				buf.writeByte(((byte) value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+		}
+	}
+}
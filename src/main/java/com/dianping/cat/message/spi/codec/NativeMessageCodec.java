@@ -24,9 +24,9 @@ import com.dianping.cat.message.spi.MessageCodec;
 import com.dianping.cat.message.spi.MessageTree;
 import com.dianping.cat.message.spi.internal.DefaultMessageTree;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.PooledByteBufAllocator;
 
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Stack;
@@ -35,6 +35,12 @@ public class NativeMessageCodec implements MessageCodec {
 
 	public static final String ID = "NT1"; // native message tree version 1
 
+	private static final byte[] ID_BYTES = ID.getBytes(StandardCharsets.US_ASCII);
+
+	private static final int STRING_CACHE_SIZE = 1024;
+
+	private ThreadLocal<Context> m_encodeContext = new ThreadLocal<Context>();
+
 	@Override
 	public MessageTree decode(ByteBuf buf) {
 		buf.readInt(); // read the length of the message tree
@@ -98,9 +104,10 @@ public class NativeMessageCodec implements MessageCodec {
 	@Override
 	public ByteBuf encode(MessageTree tree) {
 		ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer(4 * 1024);
+		Context ctx = getEncodeContext();
 
 		try {
-			Context ctx = new Context(tree);
+			ctx.m_tree = tree;
 
 			buf.writeInt(0); // place-holder
 
@@ -120,6 +127,8 @@ public class NativeMessageCodec implements MessageCodec {
 			buf.release();
 
 			throw e;
+		} finally {
+			ctx.m_tree = null;
 		}
 	}
 
@@ -150,6 +159,20 @@ public class NativeMessageCodec implements MessageCodec {
 		}
 	}
 
+	/**
+		* encode context is reused by the same thread, so that its UTF-8 string cache survives across trees
+		*/
+	private Context getEncodeContext() {
+		Context ctx = m_encodeContext.get();
+
+		if (ctx == null) {
+			ctx = new Context(null);
+			ctx.m_stringCache = new Utf8StringCache(STRING_CACHE_SIZE);
+			m_encodeContext.set(ctx);
+		}
+		return ctx;
+	}
+
 	@Override
 	public void reset() {
 	}
@@ -183,14 +206,14 @@ public class NativeMessageCodec implements MessageCodec {
 			protected void encode(Context ctx, ByteBuf buf, Message msg) {
 				MessageTree tree = ctx.getMessageTree();
 
-				ctx.writeVersion(buf, ID);
-				ctx.writeString(buf, tree.getDomain());
-				ctx.writeString(buf, tree.getHostName());
-				ctx.writeString(buf, tree.getIpAddress());
-				ctx.writeString(buf, tree.getThreadGroupName());
-				ctx.writeString(buf, tree.getThreadId());
-				ctx.writeString(buf, tree.getThreadName());
-				ctx.writeString(buf, tree.getMessageId());
+				ctx.writeVersion(buf, ID_BYTES);
+				ctx.writeCachedString(buf, tree.getDomain());
+				ctx.writeCachedString(buf, tree.getHostName());
+				ctx.writeCachedString(buf, tree.getIpAddress());
+				ctx.writeCachedString(buf, tree.getThreadGroupName());
+				ctx.writeCachedString(buf, tree.getThreadId());
+				ctx.writeCachedString(buf, tree.getThreadName());
+				ctx.writeMessageId(buf, tree);
 				ctx.writeString(buf, tree.getParentMessageId());
 				ctx.writeString(buf, tree.getRootMessageId());
 				ctx.writeString(buf, tree.getSessionToken());
@@ -225,8 +248,8 @@ public class NativeMessageCodec implements MessageCodec {
 			protected void encode(Context ctx, ByteBuf buf, Message msg) {
 				ctx.writeId(buf, 't');
 				ctx.writeTimestamp(buf, msg.getTimestamp());
-				ctx.writeString(buf, msg.getType());
-				ctx.writeString(buf, msg.getName());
+				ctx.writeCachedString(buf, msg.getType());
+				ctx.writeCachedString(buf, msg.getName());
 			}
 		},
 
@@ -249,8 +272,8 @@ public class NativeMessageCodec implements MessageCodec {
 				Transaction t = (Transaction) msg;
 
 				ctx.writeId(buf, 'T');
-				ctx.writeString(buf, msg.getStatus());
-				ctx.writeString(buf, msg.getData().toString());
+				ctx.writeCachedString(buf, msg.getStatus());
+				ctx.writeData(buf, msg.getData());
 				ctx.writeDuration(buf, t.getDurationInMicros());
 			}
 		},
@@ -281,10 +304,10 @@ public class NativeMessageCodec implements MessageCodec {
 			protected void encode(Context ctx, ByteBuf buf, Message msg) {
 				ctx.writeId(buf, 'E');
 				ctx.writeTimestamp(buf, msg.getTimestamp());
-				ctx.writeString(buf, msg.getType());
-				ctx.writeString(buf, msg.getName());
-				ctx.writeString(buf, msg.getStatus());
-				ctx.writeString(buf, msg.getData().toString());
+				ctx.writeCachedString(buf, msg.getType());
+				ctx.writeCachedString(buf, msg.getName());
+				ctx.writeCachedString(buf, msg.getStatus());
+				ctx.writeData(buf, msg.getData());
 			}
 		},
 
@@ -314,10 +337,10 @@ public class NativeMessageCodec implements MessageCodec {
 			protected void encode(Context ctx, ByteBuf buf, Message msg) {
 				ctx.writeId(buf, 'M');
 				ctx.writeTimestamp(buf, msg.getTimestamp());
-				ctx.writeString(buf, msg.getType());
-				ctx.writeString(buf, msg.getName());
-				ctx.writeString(buf, msg.getStatus());
-				ctx.writeString(buf, msg.getData().toString());
+				ctx.writeCachedString(buf, msg.getType());
+				ctx.writeCachedString(buf, msg.getName());
+				ctx.writeCachedString(buf, msg.getStatus());
+				ctx.writeData(buf, msg.getData());
 			}
 		},
 
@@ -347,10 +370,10 @@ public class NativeMessageCodec implements MessageCodec {
 			protected void encode(Context ctx, ByteBuf buf, Message msg) {
 				ctx.writeId(buf, 'H');
 				ctx.writeTimestamp(buf, msg.getTimestamp());
-				ctx.writeString(buf, msg.getType());
-				ctx.writeString(buf, msg.getName());
-				ctx.writeString(buf, msg.getStatus());
-				ctx.writeString(buf, msg.getData().toString());
+				ctx.writeCachedString(buf, msg.getType());
+				ctx.writeCachedString(buf, msg.getName());
+				ctx.writeCachedString(buf, msg.getStatus());
+				ctx.writeData(buf, msg.getData());
 			}
 		},
 
@@ -374,10 +397,10 @@ public class NativeMessageCodec implements MessageCodec {
 			protected void encode(Context ctx, ByteBuf buf, Message msg) {
 				ctx.writeId(buf, 'L');
 				ctx.writeTimestamp(buf, msg.getTimestamp());
-				ctx.writeString(buf, msg.getType());
-				ctx.writeString(buf, msg.getName());
-				ctx.writeString(buf, msg.getStatus());
-				ctx.writeString(buf, msg.getData().toString());
+				ctx.writeCachedString(buf, msg.getType());
+				ctx.writeCachedString(buf, msg.getName());
+				ctx.writeCachedString(buf, msg.getStatus());
+				ctx.writeData(buf, msg.getData());
 			}
 		};
 
@@ -387,10 +410,10 @@ public class NativeMessageCodec implements MessageCodec {
 	}
 
 	private static class Context {
-		private static Charset UTF8 = Charset.forName("UTF-8");
-
 		private MessageTree m_tree;
 
+		private Utf8StringCache m_stringCache;
+
 		private Stack<DefaultTransaction> m_parents = new Stack<DefaultTransaction>();
 
 		private byte[] m_data = new byte[256];
@@ -479,17 +502,84 @@ public class NativeMessageCodec implements MessageCodec {
 			buf.writeByte(id);
 		}
 
-		public void writeString(ByteBuf buf, String str) {
+		public void writeCachedString(ByteBuf buf, String str) {
 			if (str == null || str.length() == 0) {
 				writeVarint(buf, 0);
 			} else {
-				byte[] data = str.getBytes(UTF8);
+				byte[] data = m_stringCache == null ? null : m_stringCache.get(str);
 
-				writeVarint(buf, data.length);
+				if (data != null) {
+					writeVarint(buf, data.length);
+					buf.writeBytes(data);
+				} else {
+					writeString(buf, str);
+				}
+			}
+		}
+
+		public void writeData(ByteBuf buf, Object data) {
+			if (data instanceof CharSequence) {
+				writeString(buf, (CharSequence) data);
+			} else {
+				writeString(buf, String.valueOf(data));
+			}
+		}
+
+		/**
+			* write the UTF-8 bytes straight into the buffer, no intermediate byte array or string is created.
+			*/
+		public void writeString(ByteBuf buf, CharSequence str) {
+			if (str == null || str.length() == 0) {
+				writeVarint(buf, 0);
+			} else {
+				writeVarint(buf, ByteBufUtil.utf8Bytes(str));
+				ByteBufUtil.writeUtf8(buf, str);
+			}
+		}
+
+		/**
+			* a binary message id is written in its text form without creating the string
+			*/
+		public void writeMessageId(ByteBuf buf, MessageTree tree) {
+			String prefix = tree instanceof DefaultMessageTree ? ((DefaultMessageTree) tree).getMessageIdPrefix() : null;
+			byte[] data = prefix == null || m_stringCache == null ? null : m_stringCache.get(prefix);
+			long value = prefix == null ? 0 : ((DefaultMessageTree) tree).getMessageIdValue();
+			long hour = value >>> 32;
+			int index = (int) value;
+
+			if (data != null && index >= 0) {
+				writeVarint(buf, data.length + digits(hour) + 1 + digits(index));
 				buf.writeBytes(data);
+				writeDigits(buf, hour);
+				buf.writeByte('-');
+				writeDigits(buf, index);
+			} else {
+				writeString(buf, tree.getMessageId());
 			}
 		}
 
+		private int digits(long value) {
+			int digits = 1;
+
+			while (value >= 10) {
+				value /= 10;
+				digits++;
+			}
+			return digits;
+		}
+
+		private void writeDigits(ByteBuf buf, long value) {
+			byte[] data = m_data;
+			int pos = 20;
+
+			do {
+				data[--pos] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value > 0);
+
+			buf.writeBytes(data, pos, 20 - pos);
+		}
+
 		public void writeTimestamp(ByteBuf buf, long timestamp) {
 			writeVarint(buf, timestamp); // TODO use relative value of root message timestamp
 		}
@@ -506,8 +596,8 @@ public class NativeMessageCodec implements MessageCodec {
 			}
 		}
 
-		public void writeVersion(ByteBuf buf, String version) {
-			buf.writeBytes(version.getBytes());
+		public void writeVersion(ByteBuf buf, byte[] version) {
+			buf.writeBytes(version);
 		}
 	}
 
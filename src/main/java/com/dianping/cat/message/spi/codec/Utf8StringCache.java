@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.spi.codec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+	* Bounded, direct-mapped cache of UTF-8 bytes for short strings repeated across message trees, like type, name,
+	* status, domain, host name and thread name. A colliding string simply replaces the old entry.
+	* <p>
+	* Not thread safe, each encoding thread must own its instance.
+	*/
+public class Utf8StringCache {
+
+	private static final int MAX_CACHED_LENGTH = 128;
+
+	private final String[] m_keys;
+
+	private final byte[][] m_values;
+
+	private final int m_mask;
+
+	public Utf8StringCache(int size) {
+		int capacity = 1;
+
+		while (capacity < size) {
+			capacity <<= 1;
+		}
+
+		m_keys = new String[capacity];
+		m_values = new byte[capacity][];
+		m_mask = capacity - 1;
+	}
+
+	/**
+		* @param str string to encode
+		* @return UTF-8 bytes of the string, null if the string is too long to be cached
+		*/
+	public byte[] get(String str) {
+		if (str.length() > MAX_CACHED_LENGTH) {
+			return null;
+		}
+
+		int hash = str.hashCode();
+		int index = (hash ^ (hash >>> 16)) & m_mask;
+		String key = m_keys[index];
+
+		if (key == str || (key != null && key.equals(str))) {
+			return m_values[index];
+		}
+
+		byte[] value = str.getBytes(StandardCharsets.UTF_8);
+
+		m_keys[index] = str;
+		m_values[index] = value;
+		return value;
+	}
+}
@@ -21,10 +21,15 @@ package com.dianping.cat.message.spi.internal;
 import com.dianping.cat.Cat;
 import com.dianping.cat.message.*;
 import com.dianping.cat.message.internal.MessageId;
+import com.dianping.cat.message.internal.MessageIdFactory;
+import com.dianping.cat.message.internal.MessageLeakDetector;
+import com.dianping.cat.message.internal.MessagePool;
 import com.dianping.cat.message.io.BufReleaseHelper;
 import com.dianping.cat.message.spi.MessageTree;
 import com.dianping.cat.message.spi.codec.PlainTextMessageCodec;
 import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
+import io.netty.util.Recycler.Handle;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -44,6 +49,10 @@ public class DefaultMessageTree implements MessageTree {
 
 	private String m_messageId;
 
+	private String m_messageIdPrefix;
+
+	private long m_messageIdValue;
+
 	private String m_parentMessageId;
 
 	private String m_rootMessageId;
@@ -56,6 +65,8 @@ public class DefaultMessageTree implements MessageTree {
 
 	private String m_threadName;
 
+	private Thread m_thread;
+
 	private MessageId m_formatMessageId;
 
 	private boolean m_discard = true;
@@ -64,13 +75,41 @@ public class DefaultMessageTree implements MessageTree {
 
 	private boolean m_hitSample = false;
 
-	private List<Event> events = new ArrayList<Event>();
+	private List<Event> events;
+
+	private List<Transaction> transactions;
+
+	private List<Heartbeat> heartbeats;
+
+	private List<Metric> metrics;
 
-	private List<Transaction> transactions = new ArrayList<Transaction>();
+	private Handle<DefaultMessageTree> m_handle;
 
-	private List<Heartbeat> heartbeats = new ArrayList<Heartbeat>();
+	private boolean m_recycled;
 
-	private List<Metric> metrics = new ArrayList<Metric>();
+	private MessageLeakDetector.Leak m_leak;
+
+	private static final Recycler<DefaultMessageTree> s_recycler = new Recycler<DefaultMessageTree>(
+					MessagePool.CAPACITY, 1, 1, MessagePool.DELAYED_QUEUES, 1) {
+		@Override
+		protected DefaultMessageTree newObject(Handle<DefaultMessageTree> handle) {
+			DefaultMessageTree tree = new DefaultMessageTree();
+
+			tree.m_handle = handle;
+			return tree;
+		}
+	};
+
+	/**
+		* @return a tree from the pool of current thread, it goes back to the pool by {@link #recycle()}
+		*/
+	public static DefaultMessageTree obtain() {
+		DefaultMessageTree tree = s_recycler.get();
+
+		tree.m_recycled = false;
+		tree.m_leak = MessagePool.track(tree);
+		return tree;
+	}
 
 	@Override
 	public boolean canDiscard() {
@@ -79,18 +118,22 @@ public class DefaultMessageTree implements MessageTree {
 
 	@Override
 	public MessageTree copy() {
-		MessageTree tree = new DefaultMessageTree();
+		MessageTree tree = MessagePool.isEnabled() ? obtain() : new DefaultMessageTree();
 
 		tree.setDomain(m_domain);
 		tree.setHostName(m_hostName);
 		tree.setIpAddress(m_ipAddress);
 		tree.setMessageId(m_messageId);
+
+		if (m_messageIdPrefix != null) {
+			((DefaultMessageTree) tree).setMessageId(m_messageIdPrefix, m_messageIdValue);
+		}
 		tree.setParentMessageId(m_parentMessageId);
 		tree.setRootMessageId(m_rootMessageId);
 		tree.setSessionToken(m_sessionToken);
-		tree.setThreadGroupName(m_threadGroupName);
-		tree.setThreadId(m_threadId);
-		tree.setThreadName(m_threadName);
+		tree.setThreadGroupName(getThreadGroupName());
+		tree.setThreadId(getThreadId());
+		tree.setThreadName(getThreadName());
 		tree.setMessage(m_message);
 		tree.setDiscardPrivate(m_discard);
 		tree.setHitSample(m_hitSample);
@@ -177,12 +220,12 @@ public class DefaultMessageTree implements MessageTree {
 	}
 
 	public List<Event> getEvents() {
-		return events;
+		return findOrCreateEvents();
 	}
 
 	public MessageId getFormatMessageId() {
 		if (m_formatMessageId == null) {
-			m_formatMessageId = MessageId.parse(m_messageId);
+			m_formatMessageId = MessageId.parse(getMessageId());
 		}
 
 		return m_formatMessageId;
@@ -193,7 +236,7 @@ public class DefaultMessageTree implements MessageTree {
 	}
 
 	public List<Heartbeat> getHeartbeats() {
-		return heartbeats;
+		return findOrCreateHeartbeats();
 	}
 
 	@Override
@@ -233,11 +276,18 @@ public class DefaultMessageTree implements MessageTree {
 
 	@Override
 	public void setMessage(Message message) {
+		if (m_recycled) {
+			MessagePool.onRecycledUse(this);
+		}
 		m_message = message;
 	}
 
 	@Override
 	public String getMessageId() {
+		if (m_messageId == null && m_messageIdPrefix != null) {
+			m_messageId = MessageIdFactory.format(m_messageIdPrefix, m_messageIdValue);
+			m_messageIdPrefix = null;
+		}
 		return m_messageId;
 	}
 
@@ -245,11 +295,36 @@ public class DefaultMessageTree implements MessageTree {
 	public void setMessageId(String messageId) {
 		if (messageId != null && messageId.length() > 0) {
 			m_messageId = messageId;
+			m_messageIdPrefix = null;
 		}
 	}
 
+	/**
+		* set the message id in binary form, it is formatted only when the text form is asked for
+		*/
+	public void setMessageId(String prefix, long value) {
+		m_messageId = null;
+		m_messageIdPrefix = prefix;
+		m_messageIdValue = value;
+	}
+
+	/**
+		* @return prefix of the binary message id, null if the id is not set or already formatted
+		*/
+	public String getMessageIdPrefix() {
+		return m_messageIdPrefix;
+	}
+
+	public long getMessageIdValue() {
+		return m_messageIdValue;
+	}
+
+	public boolean hasMessageId() {
+		return m_messageId != null || m_messageIdPrefix != null;
+	}
+
 	public List<Metric> getMetrics() {
-		return metrics;
+		return findOrCreateMetrics();
 	}
 
 	@Override
@@ -278,36 +353,72 @@ public class DefaultMessageTree implements MessageTree {
 
 	@Override
 	public String getThreadGroupName() {
+		if (m_thread != null) {
+			resolveThread();
+		}
 		return m_threadGroupName;
 	}
 
 	@Override
 	public void setThreadGroupName(String threadGroupName) {
+		if (m_thread != null) {
+			resolveThread();
+		}
 		m_threadGroupName = threadGroupName;
 	}
 
 	@Override
 	public String getThreadId() {
+		if (m_thread != null) {
+			resolveThread();
+		}
 		return m_threadId;
 	}
 
 	@Override
 	public void setThreadId(String threadId) {
+		if (m_thread != null) {
+			resolveThread();
+		}
 		m_threadId = threadId;
 	}
 
 	@Override
 	public String getThreadName() {
+		if (m_thread != null) {
+			resolveThread();
+		}
 		return m_threadName;
 	}
 
 	@Override
 	public void setThreadName(String threadName) {
+		if (m_thread != null) {
+			resolveThread();
+		}
 		m_threadName = threadName;
 	}
 
+	/**
+		* remember the thread only, its group, id and name are turned into strings when they are first asked for,
+		* which is usually when the tree is flushed
+		*/
+	public void setThread(Thread thread) {
+		m_thread = thread;
+	}
+
+	private void resolveThread() {
+		Thread thread = m_thread;
+		ThreadGroup group = thread.getThreadGroup(); // null once the thread is terminated
+
+		m_thread = null;
+		m_threadGroupName = group != null ? group.getName() : null;
+		m_threadId = String.valueOf(thread.getId());
+		m_threadName = thread.getName();
+	}
+
 	public List<Transaction> getTransactions() {
-		return transactions;
+		return findOrCreateTransactions();
 	}
 
 	@Override
@@ -358,5 +469,56 @@ public class DefaultMessageTree implements MessageTree {
         return result;
     }
 
+	/**
+		* give a pooled tree back to the pool, the messages of the tree are not touched
+		*
+		* @return false if the tree is not pooled or already recycled
+		*/
+	public boolean recycle() {
+		if (m_handle == null) {
+			return false;
+		} else if (m_recycled) {
+			MessagePool.onRecycledUse(this);
+			return false;
+		}
 
+		reset();
+		m_recycled = true;
+
+		if (m_leak != null) {
+			m_leak.close();
+			m_leak = null;
+		}
+
+		if (!MessagePool.isDebug()) {
+			m_handle.recycle(this);
+		}
+		return true;
+	}
+
+	private void reset() {
+		m_buf = null;
+		m_domain = null;
+		m_hostName = null;
+		m_ipAddress = null;
+		m_message = null;
+		m_messageId = null;
+		m_messageIdPrefix = null;
+		m_messageIdValue = 0;
+		m_parentMessageId = null;
+		m_rootMessageId = null;
+		m_sessionToken = null;
+		m_threadGroupName = null;
+		m_threadId = null;
+		m_threadName = null;
+		m_thread = null;
+		m_formatMessageId = null;
+		m_discard = true;
+		m_processLoss = false;
+		m_hitSample = false;
+		events = null;
+		transactions = null;
+		heartbeats = null;
+		metrics = null;
+	}
 }
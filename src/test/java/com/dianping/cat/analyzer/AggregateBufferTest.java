@@ -0,0 +1,102 @@
+package com.dianping.cat.analyzer;
+
+import com.dianping.cat.analyzer.EventAggregator.EventData;
+import com.dianping.cat.analyzer.TransactionAggregator.TransactionData;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class AggregateBufferTest {
+
+	private static final int THREADS = 8;
+
+	private static final int ROUNDS = 200000;
+
+	private void runWriters(final Runnable writer, Runnable snapshot) throws Exception {
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		final AtomicBoolean failed = new AtomicBoolean();
+
+		for (int i = 0; i < THREADS; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						writer.run();
+					} catch (Throwable e) {
+						failed.set(true);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		while (done.getCount() > 0) {
+			snapshot.run();
+		}
+		snapshot.run();
+
+		Assertions.assertFalse(failed.get());
+	}
+
+	@Test
+	void transactionSnapshotsLoseNothing() throws Exception {
+		final TransactionAggregator aggregator = new TransactionAggregator();
+		final long[] totals = new long[3];
+
+		runWriters(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < ROUNDS; i++) {
+					aggregator.logBatchTransaction("SQL", "select-" + (i & 3), 2, i & 1, 5);
+				}
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				for (Map<String, TransactionData> item : aggregator.getAndResetTransactions().values()) {
+					for (TransactionData data : item.values()) {
+						totals[0] += data.getCount();
+						totals[1] += data.getFail();
+						totals[2] += data.getSum();
+					}
+				}
+			}
+		});
+
+		Assertions.assertEquals(2L * THREADS * ROUNDS, totals[0]);
+		Assertions.assertEquals((long) THREADS * ROUNDS / 2, totals[1]);
+		Assertions.assertEquals(5L * THREADS * ROUNDS, totals[2]);
+	}
+
+	@Test
+	void eventSnapshotsLoseNothing() throws Exception {
+		final EventAggregator aggregator = new EventAggregator();
+		final long[] totals = new long[2];
+
+		runWriters(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < ROUNDS; i++) {
+					aggregator.logBatchEvent("Cache", "get-" + (i & 3), 1, i & 1);
+				}
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				for (Map<String, EventData> item : aggregator.getAndResetEvents().values()) {
+					for (EventData data : item.values()) {
+						totals[0] += data.getCount();
+						totals[1] += data.getError();
+					}
+				}
+			}
+		});
+
+		Assertions.assertEquals((long) THREADS * ROUNDS, totals[0]);
+		Assertions.assertEquals((long) THREADS * ROUNDS / 2, totals[1]);
+	}
+}
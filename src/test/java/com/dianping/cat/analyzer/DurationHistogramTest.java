@@ -0,0 +1,36 @@
+package com.dianping.cat.analyzer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class DurationHistogramTest {
+
+	@Test
+	void bucketsMatchDurationComputer() {
+		for (int duration = -10; duration <= 5000000; duration++) {
+			int key = DurationHistogram.keyOf(DurationHistogram.indexOf(duration));
+
+			if (key != DurationComputer.computeDuration(duration)) {
+				Assertions.fail("duration " + duration + " is counted in bucket " + key);
+			}
+		}
+		Assertions.assertEquals(DurationComputer.computeDuration(Integer.MAX_VALUE),
+						DurationHistogram.keyOf(DurationHistogram.indexOf(Integer.MAX_VALUE)));
+	}
+
+	@Test
+	void serializesNonEmptyBuckets() {
+		DurationHistogram histogram = new DurationHistogram();
+
+		histogram.record(0);
+		histogram.record(7);
+		histogram.record(7);
+		histogram.record(23);
+
+		Assertions.assertEquals("1,1|7,2|20,1", histogram.toString());
+
+		histogram.reset();
+
+		Assertions.assertEquals("", histogram.toString());
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.bench;
+
+import com.dianping.cat.analyzer.EventAggregator;
+import com.dianping.cat.analyzer.TransactionAggregator;
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.internal.CatFixture;
+import com.dianping.cat.message.internal.DefaultEvent;
+import com.dianping.cat.message.internal.DefaultTransaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+	* Count the same transaction and event from many threads at once, the hot key case of the local aggregators. The
+	* transaction aggregator reads the long thresholds from the client config, so {@link CatFixture} is installed.
+	* <p>
+	* Throughput is summed over all threads. Change the thread count with -t: java -cp ... org.openjdk.jmh.Main AggregatorBenchmark -t 4
+	*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(1)
+public class AggregatorBenchmark {
+	private CatFixture m_fixture = new CatFixture();
+
+	private DefaultTransaction m_transaction;
+
+	private DefaultEvent m_event;
+
+	@Setup
+	public void setup() throws Exception {
+		m_fixture.setKeep(false);
+		m_fixture.install();
+
+		m_transaction = new DefaultTransaction("URL", "/order/list");
+		m_transaction.setStatus(Message.SUCCESS);
+		m_transaction.setDurationInMicros(12345);
+
+		m_event = new DefaultEvent("SQL", "select");
+		m_event.setStatus(Message.SUCCESS);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		m_fixture.uninstall();
+	}
+
+	@Benchmark
+	public void logTransaction() {
+		TransactionAggregator.getInstance().logTransaction(m_transaction);
+	}
+
+	@Benchmark
+	public void logEvent() {
+		EventAggregator.getInstance().logEvent(m_event);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.bench;
+
+import com.dianping.cat.analyzer.DurationComputer;
+import com.dianping.cat.analyzer.DurationHistogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+	* Record log-normal transaction durations, in the bucket array histogram and in the map of boxed bucket keys it
+	* replaced.
+	* <p>
+	* Run with the gc profiler to see the boxing of the map: java -cp ... org.openjdk.jmh.Main DurationHistogramBenchmark
+	* -prof gc
+	*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DurationHistogramBenchmark {
+	private static final int DURATIONS = 1024;
+
+	private int[] m_durations = new int[DURATIONS];
+
+	private int m_index;
+
+	private DurationHistogram m_histogram = new DurationHistogram();
+
+	private ConcurrentHashMap<Integer, LongAdder> m_map = new ConcurrentHashMap<Integer, LongAdder>();
+
+	@Setup
+	public void setup() {
+		Random random = new Random(2018);
+
+		for (int i = 0; i < DURATIONS; i++) {
+			m_durations[i] = (int) Math.exp(3 + 1.5 * random.nextGaussian());
+		}
+	}
+
+	@Benchmark
+	public int histogram() {
+		return m_histogram.record(m_durations[m_index++ & (DURATIONS - 1)]);
+	}
+
+	@Benchmark
+	public int map() {
+		int duration = DurationComputer.computeDuration(m_durations[m_index++ & (DURATIONS - 1)]);
+		LongAdder counter = m_map.get(duration);
+
+		if (counter == null) {
+			counter = new LongAdder();
+
+			LongAdder oldValue = m_map.putIfAbsent(duration, counter);
+
+			if (oldValue != null) {
+				counter = oldValue;
+			}
+		}
+
+		counter.increment();
+		return duration;
+	}
+}
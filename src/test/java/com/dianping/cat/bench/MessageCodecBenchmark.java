@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.bench;
+
+import com.dianping.cat.message.internal.DefaultEvent;
+import com.dianping.cat.message.internal.DefaultTransaction;
+import com.dianping.cat.message.spi.MessageCodec;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.codec.DictionaryMessageCodec;
+import com.dianping.cat.message.spi.codec.NativeMessageCodec;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+	* Encode a small URL tree with three SQL events, the shape the sender writes most often.
+	* <p>
+	* The trees only differ in their message ids, so NT2 sends the repeated strings as dictionary references. The
+	* average encoded size of each codec is printed when the trial ends.
+	* <p>
+	* Run with the gc profiler to see the bytes allocated per tree: java -cp ... org.openjdk.jmh.Main
+	* MessageCodecBenchmark -prof gc
+	*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+	private static final int TREES = 16;
+
+	@Param({"NT1", "NT2"})
+	private String m_type;
+
+	private MessageCodec m_codec;
+
+	private MessageTree[] m_trees = new MessageTree[TREES];
+
+	private int m_index;
+
+	private long m_count;
+
+	private long m_bytes;
+
+	@Setup
+	public void setup() {
+		if (DictionaryMessageCodec.ID.equals(m_type)) {
+			m_codec = new DictionaryMessageCodec();
+		} else {
+			m_codec = new NativeMessageCodec();
+		}
+
+		for (int i = 0; i < TREES; i++) {
+			m_trees[i] = buildTree(i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (m_count > 0) {
+			System.out.println();
+			System.out.println(m_type + " bytes per tree: " + m_bytes / m_count);
+		}
+	}
+
+	private MessageTree buildTree(int index) {
+		DefaultMessageTree tree = new DefaultMessageTree();
+
+		tree.setDomain("cat");
+		tree.setHostName("localhost");
+		tree.setIpAddress("127.0.0.1");
+		tree.setThreadGroupName("main");
+		tree.setThreadId("1");
+		tree.setThreadName("http-exec-1");
+		tree.setMessageId("cat-7f000001-480000-" + (index + 1));
+		tree.setParentMessageId("cat-7f000001-480000-0");
+		tree.setRootMessageId("cat-7f000001-480000-0");
+		tree.setSessionToken("session");
+
+		DefaultTransaction t = new DefaultTransaction("URL", "/order/list");
+
+		t.addData("page", 1);
+		t.setStatus("0");
+		t.setDurationInMicros(1234);
+
+		for (int i = 0; i < 3; i++) {
+			DefaultEvent e = new DefaultEvent("SQL", "select");
+
+			e.setTimestamp(t.getTimestamp() + i);
+			e.addData("select * from orders where id = ?");
+			e.setStatus("0");
+			t.addChild(e);
+		}
+
+		tree.setMessage(t);
+		return tree;
+	}
+
+	@Benchmark
+	public int encode() {
+		ByteBuf buf = m_codec.encode(m_trees[m_index++ & (TREES - 1)]);
+		int size = buf.readableBytes();
+
+		m_count++;
+		m_bytes += size;
+		buf.release();
+		return size;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.bench;
+
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.internal.CatFixture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+	* Start and complete nested transactions through {@link Cat}, each operation is one whole tree of the given depth
+	* from the first start to the flush.
+	* <p>
+	* Run from the test classpath: java -cp ... org.openjdk.jmh.Main MessageContextBenchmark
+	*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageContextBenchmark {
+	@Param({"1", "5", "20"})
+	private int m_depth;
+
+	private CatFixture m_fixture = new CatFixture();
+
+	private Transaction[] m_transactions;
+
+	@Setup
+	public void setup() throws Exception {
+		m_transactions = new Transaction[m_depth];
+		m_fixture.setKeep(false);
+		m_fixture.install();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		m_fixture.uninstall();
+	}
+
+	@Benchmark
+	public void nested() {
+		for (int i = 0; i < m_depth; i++) {
+			m_transactions[i] = Cat.newTransaction("Service", "level");
+		}
+
+		for (int i = m_depth - 1; i >= 0; i--) {
+			m_transactions[i].setStatus(Transaction.SUCCESS);
+			m_transactions[i].complete();
+		}
+	}
+}
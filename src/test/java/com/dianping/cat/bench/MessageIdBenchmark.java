@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.bench;
+
+import com.dianping.cat.message.internal.MessageIdFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+	* Hand out message ids from many threads at once, in text and in binary form. The shared counter is the baseline
+	* the per-thread index blocks are compared with.
+	* <p>
+	* The factory is not initialized, so no mark file is written, only the id prefix is set. Change the thread count
+	* with -t: java -cp ... org.openjdk.jmh.Main MessageIdBenchmark -t 4
+	*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(1)
+public class MessageIdBenchmark {
+	private MessageIdFactory m_factory;
+
+	private AtomicInteger m_counter = new AtomicInteger();
+
+	@Setup
+	public void setup() throws Exception {
+		Field field = MessageIdFactory.class.getDeclaredField("m_idPrefix");
+
+		m_factory = new MessageIdFactory();
+		field.setAccessible(true);
+		field.set(m_factory, "bench-7f000001-480000-");
+	}
+
+	@Benchmark
+	public int sharedCounter() {
+		return m_counter.getAndIncrement();
+	}
+
+	@Benchmark
+	public String nextId() {
+		return m_factory.getNextId();
+	}
+
+	@Benchmark
+	public long nextIdValue() {
+		return m_factory.getNextIdValue();
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.bench;
+
+import com.dianping.cat.message.internal.DefaultEvent;
+import com.dianping.cat.message.internal.DefaultTransaction;
+import com.dianping.cat.message.internal.MessagePool;
+import com.dianping.cat.message.spi.codec.NativeMessageCodec;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+	* Build a transaction with five events, encode it and recycle it, the life of a tree from producer to sender.
+	* <p>
+	* The pool is read from the settings once, so compare two runs, the second one with a META-INF/app.properties
+	* holding cat.message.pool.enabled=true in front of the classpath: java -cp ... org.openjdk.jmh.Main
+	* MessagePoolBenchmark -prof gc
+	*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagePoolBenchmark {
+	private NativeMessageCodec m_codec = new NativeMessageCodec();
+
+	@Benchmark
+	public int buildEncodeRecycle() {
+		DefaultTransaction t = MessagePool.newTransaction("URL", "/index", null);
+
+		for (int i = 0; i < 5; i++) {
+			DefaultEvent e = MessagePool.newEvent("SQL", "select", null);
+
+			e.setStatus("0");
+			e.setCompleted(true);
+			t.addChild(e);
+		}
+
+		t.setStatus("0");
+		t.setCompleted(true);
+		t.setDurationInMicros(100);
+
+		DefaultMessageTree tree = MessagePool.isEnabled() ? DefaultMessageTree.obtain() : new DefaultMessageTree();
+
+		tree.setDomain("bench");
+		tree.setHostName("localhost");
+		tree.setIpAddress("127.0.0.1");
+		tree.setMessageId("bench-7f000001-480000-1");
+		tree.setMessage(t);
+
+		ByteBuf buf = m_codec.encode(tree);
+		int size = buf.readableBytes();
+
+		buf.release();
+		MessagePool.recycle(tree);
+		return size;
+	}
+}
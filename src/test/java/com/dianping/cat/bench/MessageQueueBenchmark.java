@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.bench;
+
+import com.dianping.cat.message.io.DefaultMessageQueue;
+import com.dianping.cat.message.io.RingBufferMessageQueue;
+import com.dianping.cat.message.spi.MessageQueue;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+	* Producers offer trees while one sender thread drains them in batches, the lock based queue against the ring
+	* buffer with 1, 8 and 32 producers.
+	* <p>
+	* The accepted and rejected counters are the offers per microsecond summed over the producers, a rejected offer
+	* is a tree the sender would drop or spill. Run from the test classpath: java -cp ... org.openjdk.jmh.Main
+	* MessageQueueBenchmark
+	*/
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageQueueBenchmark {
+	private static final int BATCH = 32;
+
+	@Param({"blocking", "ring"})
+	private String m_type;
+
+	private MessageQueue m_queue;
+
+	private MessageTree m_tree = new DefaultMessageTree();
+
+	@Setup
+	public void setup() {
+		if ("ring".equals(m_type)) {
+			m_queue = new RingBufferMessageQueue(5000);
+		} else {
+			m_queue = new DefaultMessageQueue(5000);
+		}
+	}
+
+	private void offer(Offers offers) {
+		if (m_queue.offer(m_tree)) {
+			offers.m_accepted++;
+		} else {
+			offers.m_rejected++;
+		}
+	}
+
+	private int drain(Drained drained) {
+		int count = m_queue.drainTo(drained.m_trees, BATCH);
+
+		drained.m_trees.clear();
+		return count;
+	}
+
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public void offer1(Offers offers) {
+		offer(offers);
+	}
+
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public int drain1(Drained drained) {
+		return drain(drained);
+	}
+
+	@Benchmark
+	@Group("producers8")
+	@GroupThreads(8)
+	public void offer8(Offers offers) {
+		offer(offers);
+	}
+
+	@Benchmark
+	@Group("producers8")
+	@GroupThreads(1)
+	public int drain8(Drained drained) {
+		return drain(drained);
+	}
+
+	@Benchmark
+	@Group("producers32")
+	@GroupThreads(32)
+	public void offer32(Offers offers) {
+		offer(offers);
+	}
+
+	@Benchmark
+	@Group("producers32")
+	@GroupThreads(1)
+	public int drain32(Drained drained) {
+		return drain(drained);
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Offers {
+		private long m_accepted;
+
+		private long m_rejected;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			m_accepted = 0;
+			m_rejected = 0;
+		}
+
+		public long accepted() {
+			return m_accepted;
+		}
+
+		public long rejected() {
+			return m_rejected;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Drained {
+		private List<MessageTree> m_trees = new ArrayList<MessageTree>(BATCH);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.bench;
+
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.internal.CatFixture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+	* Log a batch transaction with 100k events through {@link Cat}, the tree is truncated and flushed many times on the
+	* way.
+	* <p>
+	* Run from the test classpath: java -cp ... org.openjdk.jmh.Main TruncateBenchmark
+	*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TruncateBenchmark {
+	private static final int EVENTS = 100000;
+
+	private CatFixture m_fixture = new CatFixture();
+
+	@Setup
+	public void setup() throws Exception {
+		m_fixture.setKeep(false);
+		m_fixture.install();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		m_fixture.uninstall();
+	}
+
+	@Benchmark
+	public void batch() {
+		Transaction t = Cat.newTransaction("Job", "batch");
+
+		for (int i = 0; i < EVENTS; i++) {
+			Cat.logEvent("Item", "process", Transaction.SUCCESS, "id=" + i);
+		}
+
+		t.setStatus(Transaction.SUCCESS);
+		t.complete();
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.Cat;
+import com.dianping.cat.configuration.DefaultClientConfigManager;
+import com.dianping.cat.configuration.client.entity.ClientConfig;
+import com.dianping.cat.configuration.client.entity.Domain;
+import com.dianping.cat.message.io.DefaultTransportManager;
+import com.dianping.cat.message.io.TcpSocketSender;
+import com.dianping.cat.message.spi.MessageTree;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+	* wires a message manager and producer into {@link Cat} without a spring context, the trees flushed are kept in
+	* memory instead of being sent
+	*/
+public class CatFixture {
+	private List<MessageTree> m_sent = new CopyOnWriteArrayList<MessageTree>();
+
+	private boolean m_keep = true;
+
+	private Cat m_cat = new Cat();
+
+	private Cat m_previous;
+
+	private static void setField(Class<?> clazz, Object target, String name, Object value) throws Exception {
+		Field field = clazz.getDeclaredField(name);
+
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	private static Object getField(Class<?> clazz, Object target, String name) throws Exception {
+		Field field = clazz.getDeclaredField(name);
+
+		field.setAccessible(true);
+		return field.get(target);
+	}
+
+	public void install() throws Exception {
+		DefaultClientConfigManager configManager = new DefaultClientConfigManager();
+		ClientConfig config = new ClientConfig();
+		Domain domain = new Domain("test").setEnabled(true).setIp("127.0.0.1");
+
+		config.setEnabled(true);
+		config.addDomain(domain);
+		setField(DefaultClientConfigManager.class, configManager, "m_config", config);
+
+		DefaultTransportManager transportManager = new DefaultTransportManager();
+
+		setField(DefaultTransportManager.class, transportManager, "tcpSocketSender", new TcpSocketSender() {
+			@Override
+			public void send(MessageTree tree) {
+				if (m_keep) {
+					m_sent.add(tree);
+				}
+			}
+		});
+
+		MessageIdFactory idFactory = new MessageIdFactory();
+
+		setField(MessageIdFactory.class, idFactory, "m_idPrefix", "test-7f000001-");
+
+		DefaultMessageManager manager = new DefaultMessageManager();
+
+		setField(DefaultMessageManager.class, manager, "defaultClientConfigManager", configManager);
+		setField(DefaultMessageManager.class, manager, "defaultTransportManager", transportManager);
+		setField(DefaultMessageManager.class, manager, "messageIdFactory", idFactory);
+		setField(DefaultMessageManager.class, manager, "m_domain", domain);
+		setField(DefaultMessageManager.class, manager, "m_hostName", "localhost");
+
+		DefaultMessageProducer producer = new DefaultMessageProducer();
+
+		setField(DefaultMessageProducer.class, producer, "defaultMessageManager", manager);
+		setField(DefaultMessageProducer.class, producer, "messageIdFactory", idFactory);
+		setField(Cat.class, m_cat, "defaultMessageManager", manager);
+		setField(Cat.class, m_cat, "defaultMessageProducer", producer);
+
+		m_previous = (Cat) getField(Cat.class, null, "s_instance");
+		setField(Cat.class, null, "s_instance", m_cat);
+		setField(Cat.class, null, "s_init", true);
+	}
+
+	public void uninstall() throws Exception {
+		setField(Cat.class, null, "s_instance", m_previous);
+		setField(Cat.class, null, "s_init", false);
+	}
+
+	/**
+		* drop the flushed trees instead of keeping them, for benchmarks that flush millions of trees
+		*/
+	public void setKeep(boolean keep) {
+		m_keep = keep;
+	}
+
+	public List<MessageTree> getSent() {
+		return m_sent;
+	}
+
+	public MessageTree findTree(String type) {
+		for (MessageTree tree : m_sent) {
+			if (tree.getMessage() != null && type.equals(tree.getMessage().getType())) {
+				return tree;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.ApplicationSettings;
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.Event;
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.codec.NativeMessageCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler.Handle;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+class CollapsedEventTest {
+	private CatFixture m_fixture = new CatFixture();
+
+	private static void setCollapseEnabled(boolean enabled) throws Exception {
+		Field field = ApplicationSettings.class.getDeclaredField("s_event_collapse_enabled");
+
+		field.setAccessible(true);
+		field.set(null, enabled);
+	}
+
+	@BeforeEach
+	void setUp() throws Exception {
+		m_fixture.install();
+		setCollapseEnabled(true);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		setCollapseEnabled(false);
+		m_fixture.uninstall();
+	}
+
+	private DefaultEvent createEvent(long timestamp, String status) {
+		DefaultEvent event = new DefaultEvent("Cache", "get");
+
+		event.setTimestamp(timestamp);
+		event.setStatus(status);
+		event.complete();
+		return event;
+	}
+
+	@Test
+	void writesBatchData() {
+		CollapsedEvent collapsed = new CollapsedEvent(createEvent(1000L, Message.SUCCESS));
+
+		collapsed.merge(createEvent(1005L, "timeout"));
+		collapsed.merge(createEvent(1010L, Message.SUCCESS));
+
+		Assertions.assertEquals(1000L, collapsed.getTimestamp());
+		Assertions.assertEquals("@3;1;1010", collapsed.getData().toString());
+		Assertions.assertTrue(collapsed.isSuccess());
+		Assertions.assertTrue(collapsed.isCompleted());
+	}
+
+	@Test
+	void collapsesSuccessiveEventsUnderTransaction() {
+		Transaction root = Cat.newTransaction("Job", "loop");
+
+		Cat.logEvent("Item", "process");
+		Cat.logEvent("Item", "process", "error", "key=1");
+		Cat.logEvent("Item", "process");
+		Cat.logEvent("Other", "once");
+		Cat.logEvent("Item", "process");
+		Cat.logEvent("Item", "other-name");
+
+		Transaction step = Cat.newTransaction("Step", "inner");
+
+		Cat.logEvent("Item", "process");
+		Cat.logEvent("Item", "process");
+		step.setStatus(Message.SUCCESS);
+		step.complete();
+
+		Cat.logEvent("Item", "process");
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+
+		List<Message> children = ((Transaction) m_fixture.findTree("Job").getMessage()).getChildren();
+
+		Assertions.assertEquals(6, children.size());
+		Assertions.assertTrue(children.get(0) instanceof CollapsedEvent);
+		Assertions.assertTrue(children.get(0).getData().toString().startsWith("@3;1;"));
+		Assertions.assertEquals("Other", children.get(1).getType());
+		Assertions.assertFalse(children.get(2) instanceof CollapsedEvent); // the run is broken by another type
+		Assertions.assertEquals("other-name", children.get(3).getName());
+		Assertions.assertFalse(children.get(3) instanceof CollapsedEvent);
+		Assertions.assertFalse(children.get(5) instanceof CollapsedEvent); // the run is broken by the transaction
+
+		List<Message> stepChildren = ((Transaction) children.get(4)).getChildren();
+
+		Assertions.assertEquals(1, stepChildren.size());
+		Assertions.assertTrue(stepChildren.get(0).getData().toString().startsWith("@2;0;"));
+	}
+
+	@Test
+	void encodesBatchData() {
+		Transaction root = Cat.newTransaction("Job", "loop");
+
+		for (int i = 0; i < 100; i++) {
+			Cat.logEvent("Item", "process", i % 10 == 0 ? "error" : Message.SUCCESS, null);
+		}
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+
+		MessageTree tree = m_fixture.findTree("Job");
+		Message collapsed = ((Transaction) tree.getMessage()).getChildren().get(0);
+		NativeMessageCodec codec = new NativeMessageCodec();
+		ByteBuf buf = codec.encode(tree);
+		MessageTree decoded = codec.decode(buf);
+
+		buf.release();
+
+		List<Message> children = ((Transaction) decoded.getMessage()).getChildren();
+		String data = children.get(0).getData().toString();
+
+		Assertions.assertEquals(1, children.size());
+		Assertions.assertTrue(data.matches("@100;10;\\d+"), data);
+		Assertions.assertTrue(Long.parseLong(data.substring(data.lastIndexOf(';') + 1)) >= collapsed.getTimestamp());
+	}
+
+	@Test
+	void recyclesMergedPooledEvents() {
+		final List<Object> recycled = new ArrayList<Object>();
+		Handle<DefaultEvent> handle = new Handle<DefaultEvent>() {
+			@Override
+			public void recycle(DefaultEvent object) {
+				recycled.add(object);
+			}
+		};
+		Transaction root = Cat.newTransaction("Job", "loop");
+		List<DefaultEvent> pooled = new ArrayList<DefaultEvent>();
+
+		for (int i = 0; i < 3; i++) {
+			DefaultEvent event = new DefaultEvent(handle);
+
+			event.reuse("Item", "process", Cat.getManager());
+			event.setStatus(Message.SUCCESS);
+			pooled.add(event);
+			event.complete();
+		}
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+
+		List<Message> children = ((Transaction) m_fixture.findTree("Job").getMessage()).getChildren();
+		Event collapsed = (Event) children.get(0);
+
+		Assertions.assertEquals(1, children.size());
+		Assertions.assertTrue(collapsed instanceof CollapsedEvent);
+		Assertions.assertFalse(pooled.contains(collapsed));
+		Assertions.assertEquals(pooled, recycled);
+		Assertions.assertTrue(collapsed.getData().toString().startsWith("@3;0;"));
+	}
+}
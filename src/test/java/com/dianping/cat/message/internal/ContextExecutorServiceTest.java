@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.MessageContext;
+import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.spi.MessageTree;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+class ContextExecutorServiceTest {
+	private CatFixture m_fixture = new CatFixture();
+
+	private ExecutorService m_worker;
+
+	private ExecutorService m_wrapped;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		m_fixture.install();
+		m_worker = Executors.newSingleThreadExecutor();
+		m_wrapped = Cat.wrap(m_worker);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		m_worker.shutdownNow();
+		m_fixture.uninstall();
+	}
+
+	private Runnable childTransaction(final String type) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Transaction t = Cat.newTransaction(type, "run");
+
+				t.setStatus(Message.SUCCESS);
+				t.complete();
+			}
+		};
+	}
+
+	@Test
+	void taskIsLinkedToSubmittingTransaction() throws Exception {
+		Transaction root = Cat.newTransaction("URL", "/async");
+
+		m_wrapped.submit(childTransaction("Task")).get();
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+
+		MessageTree parent = m_fixture.findTree("URL");
+		MessageTree child = m_fixture.findTree("Task");
+
+		Assertions.assertNotNull(parent.getMessageId());
+		Assertions.assertEquals(parent.getMessageId(), child.getParentMessageId());
+		Assertions.assertEquals(parent.getMessageId(), child.getRootMessageId());
+		Assertions.assertNotEquals(parent.getMessageId(), child.getMessageId());
+	}
+
+	@Test
+	void workerContextIsClearedAfterTask() throws Exception {
+		Transaction root = Cat.newTransaction("URL", "/async");
+		final MessageContext captured = Cat.captureContext();
+		final AtomicReference<MessageContext> inside = new AtomicReference<MessageContext>();
+		final AtomicReference<MessageContext> after = new AtomicReference<MessageContext>();
+
+		m_wrapped.submit(new Runnable() {
+			@Override
+			public void run() {
+				inside.set(Cat.captureContext());
+			}
+		}).get();
+		m_worker.submit(new Runnable() {
+			@Override
+			public void run() {
+				after.set(Cat.captureContext());
+				childTransaction("Later").run();
+			}
+		}).get();
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+
+		Assertions.assertEquals(captured.getParentMessageId(), inside.get().getParentMessageId());
+		Assertions.assertEquals(captured.getRootMessageId(), inside.get().getRootMessageId());
+		Assertions.assertTrue(after.get().isEmpty());
+
+		MessageTree later = m_fixture.findTree("Later");
+
+		Assertions.assertNull(later.getParentMessageId());
+		Assertions.assertNull(later.getRootMessageId());
+	}
+
+	@Test
+	void invokeAllAndSubmitWithResultAreWrapped() throws Exception {
+		Transaction root = Cat.newTransaction("URL", "/async");
+		String expected = Cat.captureContext().getParentMessageId();
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+
+		for (int i = 0; i < 2; i++) {
+			tasks.add(new Callable<String>() {
+				@Override
+				public String call() {
+					return Cat.captureContext().getParentMessageId();
+				}
+			});
+		}
+
+		for (Future<String> future : m_wrapped.invokeAll(tasks)) {
+			Assertions.assertEquals(expected, future.get());
+		}
+
+		final AtomicReference<String> seen = new AtomicReference<String>();
+		Future<String> future = m_wrapped.submit(new Runnable() {
+			@Override
+			public void run() {
+				seen.set(Cat.captureContext().getParentMessageId());
+			}
+		}, "done");
+
+		Assertions.assertEquals("done", future.get());
+		Assertions.assertEquals(expected, seen.get());
+
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+	}
+
+	@Test
+	void nestedCaptureKeepsRoot() throws Exception {
+		final ExecutorService inner = Executors.newSingleThreadExecutor();
+		final ExecutorService wrappedInner = Cat.wrap(inner);
+
+		try {
+			Transaction root = Cat.newTransaction("URL", "/async");
+
+			m_wrapped.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Transaction t = Cat.newTransaction("Task", "outer");
+
+					wrappedInner.submit(childTransaction("Nested")).get();
+					t.setStatus(Message.SUCCESS);
+					t.complete();
+					return null;
+				}
+			}).get();
+			root.setStatus(Message.SUCCESS);
+			root.complete();
+		} finally {
+			inner.shutdownNow();
+		}
+
+		MessageTree parent = m_fixture.findTree("URL");
+		MessageTree task = m_fixture.findTree("Task");
+		MessageTree nested = m_fixture.findTree("Nested");
+
+		Assertions.assertEquals(task.getMessageId(), nested.getParentMessageId());
+		Assertions.assertEquals(parent.getMessageId(), nested.getRootMessageId());
+		Assertions.assertEquals(parent.getMessageId(), task.getRootMessageId());
+	}
+}
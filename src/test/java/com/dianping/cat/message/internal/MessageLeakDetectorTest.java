@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class MessageLeakDetectorTest {
+	private MessageLeakDetector m_detector = new MessageLeakDetector();
+
+	private int collect() throws InterruptedException {
+		int leaks = 0;
+
+		for (int i = 0; i < 50 && m_detector.getOpenCount() > 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+			leaks += m_detector.report();
+		}
+		return leaks;
+	}
+
+	@Test
+	void reportsObjectCollectedWithoutRecycle() throws Exception {
+		m_detector.track(new DefaultEvent("Leak", "lost"));
+
+		Assertions.assertEquals(1, collect());
+		Assertions.assertEquals(0, m_detector.getOpenCount());
+	}
+
+	@Test
+	void ignoresRecycledObject() throws Exception {
+		DefaultEvent event = new DefaultEvent("Leak", "recycled");
+		MessageLeakDetector.Leak leak = m_detector.track(event);
+
+		leak.close();
+		event = null;
+
+		Assertions.assertEquals(0, m_detector.getOpenCount());
+		System.gc();
+		Thread.sleep(20);
+		Assertions.assertEquals(0, m_detector.report());
+	}
+
+	@Test
+	void reportsOnlyTheLeakedObject() throws Exception {
+		DefaultEvent kept = new DefaultEvent("Leak", "kept");
+		MessageLeakDetector.Leak leak = m_detector.track(kept);
+
+		m_detector.track(new DefaultEvent("Leak", "lost"));
+		leak.close();
+
+		Assertions.assertEquals(1, collect());
+		Assertions.assertEquals("kept", kept.getName());
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.ApplicationSettings;
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.spi.MessageTree;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+class StreamingTreeTest {
+	private static final int INTERVAL_MS = 50;
+
+	private CatFixture m_fixture = new CatFixture();
+
+	private static void setInterval(int interval) throws Exception {
+		Field field = ApplicationSettings.class.getDeclaredField("s_tree_stream_interval_ms");
+
+		field.setAccessible(true);
+		field.setInt(null, interval);
+	}
+
+	@BeforeEach
+	void setUp() throws Exception {
+		setInterval(INTERVAL_MS);
+		m_fixture.install();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		m_fixture.uninstall();
+		setInterval(0);
+	}
+
+	private void logItems(int count) {
+		for (int i = 0; i < count; i++) {
+			Cat.logEvent("Item", "process");
+		}
+	}
+
+	private int countItems(Transaction transaction) {
+		int count = 0;
+
+		for (Message child : transaction.getChildren()) {
+			if ("Item".equals(child.getType())) {
+				count++;
+			} else if (child instanceof Transaction) {
+				count += countItems((Transaction) child);
+			}
+		}
+		return count;
+	}
+
+	private Message findNext(Transaction transaction) {
+		for (Message child : transaction.getChildren()) {
+			if ("RemoteCall".equals(child.getType()) && "Next".equals(child.getName())) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	void flushesLinkedPartsWhileTheRootIsOpen() throws Exception {
+		Transaction root = Cat.newTransaction("Job", "stream");
+
+		logItems(5);
+		Thread.sleep(INTERVAL_MS + 20);
+		logItems(5); // the first child after the interval flushes the part before it
+
+		Assertions.assertEquals(1, m_fixture.getSent().size());
+
+		Transaction step = Cat.newTransaction("Step", "inner");
+
+		logItems(1);
+		Thread.sleep(INTERVAL_MS + 20);
+		step.setStatus(Message.SUCCESS);
+		step.complete(); // a nested transaction that ends after the interval flushes too
+
+		Assertions.assertEquals(2, m_fixture.getSent().size());
+
+		logItems(2);
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+
+		List<MessageTree> parts = m_fixture.getSent();
+		String rootId = parts.get(0).getMessageId();
+		int items = 0;
+
+		Assertions.assertEquals(3, parts.size());
+		Assertions.assertNotNull(rootId);
+
+		for (int i = 0; i < parts.size(); i++) {
+			MessageTree part = parts.get(i);
+			Transaction transaction = (Transaction) part.getMessage();
+
+			Assertions.assertEquals("Job", transaction.getType());
+			items += countItems(transaction);
+
+			if (i > 0) {
+				Assertions.assertEquals(rootId, part.getRootMessageId());
+				Assertions.assertEquals(parts.get(i - 1).getMessageId(), part.getParentMessageId());
+			}
+
+			Message next = findNext(transaction);
+
+			if (i < parts.size() - 1) {
+				Assertions.assertNotNull(next, "part " + i + " has no RemoteCall/Next");
+				Assertions.assertEquals(parts.get(i + 1).getMessageId(), next.getData().toString());
+			} else {
+				Assertions.assertNull(next);
+			}
+		}
+		Assertions.assertEquals(13, items);
+	}
+
+	@Test
+	void keepsOneTreeWhenStreamingIsOff() throws Exception {
+		setInterval(0);
+
+		Transaction root = Cat.newTransaction("Job", "stream");
+
+		logItems(5);
+		Thread.sleep(INTERVAL_MS + 20);
+		logItems(5);
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+
+		Assertions.assertEquals(1, m_fixture.getSent().size());
+		Assertions.assertEquals(10, countItems((Transaction) m_fixture.getSent().get(0).getMessage()));
+	}
+}
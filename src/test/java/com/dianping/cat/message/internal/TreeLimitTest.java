@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.internal;
+
+import com.dianping.cat.ApplicationSettings;
+import com.dianping.cat.Cat;
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.spi.MessageTree;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+
+class TreeLimitTest {
+	private static final int EVENTS = 20;
+
+	private CatFixture m_fixture = new CatFixture();
+
+	private int m_previousLimit;
+
+	private static Field getLimitField() throws Exception {
+		Field field = ApplicationSettings.class.getDeclaredField("s_tree_chars_size");
+
+		field.setAccessible(true);
+		return field;
+	}
+
+	@BeforeEach
+	void setUp() throws Exception {
+		m_previousLimit = getLimitField().getInt(null);
+		getLimitField().setInt(null, 300);
+		m_fixture.install();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		m_fixture.uninstall();
+		getLimitField().setInt(null, m_previousLimit);
+	}
+
+	private int logBatch(String data) {
+		m_fixture.getSent().clear();
+
+		Transaction root = Cat.newTransaction("Job", "batch");
+
+		for (int i = 0; i < EVENTS; i++) {
+			Cat.logEvent("Item", "process", Message.SUCCESS, data);
+		}
+
+		root.setStatus(Message.SUCCESS);
+		root.complete();
+
+		int events = 0;
+
+		for (MessageTree tree : m_fixture.getSent()) {
+			for (Message child : ((Transaction) tree.getMessage()).getChildren()) {
+				if ("Item".equals(child.getType())) {
+					events++;
+				}
+			}
+		}
+
+		Assertions.assertEquals(EVENTS, events);
+		return m_fixture.getSent().size();
+	}
+
+	@Test
+	void truncatesByChars() throws Exception {
+		int trees = logBatch("012345678901234567890123456789");
+
+		Assertions.assertTrue(trees > 1);
+		Assertions.assertTrue(trees < EVENTS);
+
+		// the limit counts chars, strings three times larger in UTF-8 give the same trees
+		Assertions.assertEquals(trees, logBatch(new String(new char[30]).replace('\0', '\u96f6')));
+	}
+
+	@Test
+	void zeroLimitsByLengthOnly() throws Exception {
+		getLimitField().setInt(null, 0);
+
+		Assertions.assertEquals(1, logBatch("012345678901234567890123456789"));
+	}
+}
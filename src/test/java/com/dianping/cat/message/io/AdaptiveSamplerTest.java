@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.internal.DefaultTransaction;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+class AdaptiveSamplerTest {
+
+	private MessageTree createTree(String name) {
+		DefaultMessageTree tree = new DefaultMessageTree();
+		DefaultTransaction transaction = new DefaultTransaction("URL", name);
+
+		transaction.setStatus(Message.SUCCESS);
+		tree.setMessage(transaction);
+		return tree;
+	}
+
+	private int sample(AdaptiveSampler sampler, String name, int count) {
+		int kept = 0;
+
+		for (int i = 0; i < count; i++) {
+			if (sampler.sample(createTree(name))) {
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	@Test
+	void splitsBudgetOnTick() {
+		AdaptiveSampler sampler = new AdaptiveSampler(10, 1);
+
+		sampler.tick(0);
+		sample(sampler, "/busy", 100);
+		sample(sampler, "/quiet", 2);
+
+		// the budget is only split again by the sender thread
+		Assertions.assertEquals(0, sample(sampler, "/busy", 100));
+
+		sampler.tick(1000);
+
+		Assertions.assertEquals(2, sample(sampler, "/quiet", 2));
+		Assertions.assertEquals(8, sample(sampler, "/busy", 100));
+
+		sampler.tick(2000);
+
+		Map<String, String> properties = sampler.getProperties();
+
+		Assertions.assertEquals("1.0", properties.get("kept-ratio.URL:/quiet"));
+		Assertions.assertEquals("0.08", properties.get("kept-ratio.URL:/busy"));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.internal.DefaultEvent;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.codec.NativeMessageCodec;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.channels.FileLock;
+
+class DiskSpillQueueTest {
+
+	@TempDir
+	File m_dir;
+
+	private MessageTree createTree(int index) {
+		DefaultMessageTree tree = new DefaultMessageTree();
+		DefaultEvent event = new DefaultEvent("Test", "spill-" + index);
+
+		event.setStatus(Message.SUCCESS);
+		event.setCompleted(true);
+		tree.setDomain("test");
+		tree.setHostName("localhost");
+		tree.setIpAddress("127.0.0.1");
+		tree.setMessageId("test-7f000001-", index);
+		tree.setMessage(event);
+		return tree;
+	}
+
+	private void unlock(DiskSpillQueue queue) throws Exception {
+		Field field = DiskSpillQueue.class.getDeclaredField("m_lock");
+
+		field.setAccessible(true);
+
+		FileLock lock = (FileLock) field.get(queue);
+
+		lock.release();
+		lock.channel().close();
+	}
+
+	@Test
+	void recoversAfterSegmentSizeChange() throws Exception {
+		DiskSpillQueue queue = new DiskSpillQueue(m_dir, 4 * 1024 * 1024L);
+
+		Assertions.assertTrue(queue.initialize());
+
+		for (int i = 0; i < 3; i++) {
+			Assertions.assertTrue(queue.offer(createTree(i)));
+		}
+		unlock(queue);
+
+		DiskSpillQueue recovered = new DiskSpillQueue(m_dir, 256 * 1024L);
+
+		Assertions.assertTrue(recovered.initialize());
+		Assertions.assertFalse(recovered.isEmpty());
+
+		NativeMessageCodec codec = new NativeMessageCodec();
+
+		for (int i = 0; i < 3; i++) {
+			ByteBuf buf = recovered.poll(ByteBufAllocator.DEFAULT);
+
+			Assertions.assertNotNull(buf);
+			Assertions.assertEquals("spill-" + i, codec.decode(buf).getMessage().getName());
+			buf.release();
+		}
+		Assertions.assertNull(recovered.poll(ByteBufAllocator.DEFAULT));
+		unlock(recovered);
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class RingBufferMessageQueueTest {
+
+	private MessageTree createTree() {
+		return new DefaultMessageTree();
+	}
+
+	@Test
+	void roundsCapacityUpToPowerOfTwo() {
+		Assertions.assertEquals(4, new RingBufferMessageQueue(3).getCapacity());
+		Assertions.assertEquals(8, new RingBufferMessageQueue(8).getCapacity());
+	}
+
+	@Test
+	void keepsOrderAcrossWrapAround() {
+		RingBufferMessageQueue queue = new RingBufferMessageQueue(4);
+
+		for (int round = 0; round < 10; round++) {
+			MessageTree first = createTree();
+			MessageTree second = createTree();
+			MessageTree third = createTree();
+
+			Assertions.assertTrue(queue.offer(first));
+			Assertions.assertTrue(queue.offer(second));
+			Assertions.assertTrue(queue.offer(third));
+			Assertions.assertEquals(3, queue.size());
+			Assertions.assertSame(first, queue.peek());
+			Assertions.assertSame(first, queue.poll());
+			Assertions.assertSame(second, queue.poll());
+			Assertions.assertSame(third, queue.poll());
+			Assertions.assertNull(queue.poll());
+			Assertions.assertEquals(0, queue.size());
+		}
+	}
+
+	@Test
+	void rejectsOfferWhenFull() {
+		RingBufferMessageQueue queue = new RingBufferMessageQueue(4);
+
+		for (int i = 0; i < 4; i++) {
+			Assertions.assertTrue(queue.offer(createTree()));
+		}
+
+		Assertions.assertFalse(queue.offer(createTree()));
+		Assertions.assertEquals(4, queue.size());
+
+		queue.poll();
+
+		Assertions.assertTrue(queue.offer(createTree()));
+		Assertions.assertFalse(queue.offer(createTree()));
+	}
+
+	@Test
+	void drainsUpToMaxElements() {
+		RingBufferMessageQueue queue = new RingBufferMessageQueue(8);
+		List<MessageTree> offered = new ArrayList<MessageTree>();
+		List<MessageTree> drained = new ArrayList<MessageTree>();
+
+		for (int i = 0; i < 6; i++) {
+			MessageTree tree = createTree();
+
+			offered.add(tree);
+			queue.offer(tree);
+		}
+
+		Assertions.assertEquals(4, queue.drainTo(drained, 4));
+		Assertions.assertEquals(offered.subList(0, 4), drained);
+		Assertions.assertEquals(2, queue.size());
+
+		Assertions.assertEquals(2, queue.drainTo(drained, 4));
+		Assertions.assertEquals(offered, drained);
+		Assertions.assertEquals(0, queue.drainTo(drained, 4));
+		Assertions.assertNull(queue.peek());
+	}
+
+	@Test
+	void losesNothingWithConcurrentProducers() throws Exception {
+		final RingBufferMessageQueue queue = new RingBufferMessageQueue(64);
+		final int producers = 4;
+		final int perProducer = 10000;
+		Thread[] threads = new Thread[producers];
+
+		for (int i = 0; i < producers; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < perProducer; j++) {
+						while (!queue.offer(createTree())) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		List<MessageTree> drained = new ArrayList<MessageTree>();
+		int total = 0;
+
+		while (total < producers * perProducer) {
+			drained.clear();
+
+			int count = queue.drainTo(drained, 32);
+
+			for (MessageTree tree : drained) {
+				Assertions.assertNotNull(tree);
+			}
+			total += count;
+
+			if (count == 0) {
+				Thread.yield();
+			}
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assertions.assertEquals(0, queue.size());
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.configuration.DefaultClientConfigManager;
+import com.dianping.cat.message.Transaction;
+import com.dianping.cat.message.internal.DefaultTransaction;
+import com.dianping.cat.message.internal.MessageIdFactory;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+class TailSamplerTest {
+
+	private static void setField(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	private MessageTree createTree(String rootId, String status) {
+		DefaultMessageTree tree = new DefaultMessageTree();
+		DefaultTransaction transaction = new DefaultTransaction("Job", "run", null);
+
+		transaction.setStatus(status);
+		transaction.setDurationInMicros(1000);
+		transaction.setCompleted(true);
+		tree.setMessage(transaction);
+		tree.setRootMessageId(rootId);
+		tree.setParentMessageId(rootId);
+		return tree;
+	}
+
+	@Test
+	void keepsTreesOfFailedTraceWithoutPreassignedIds() throws Exception {
+		TcpSocketSender sender = new TcpSocketSender();
+		DefaultClientConfigManager configManager = new DefaultClientConfigManager();
+		MessageIdFactory idFactory = new MessageIdFactory();
+		RingBufferMessageQueue queue = new RingBufferMessageQueue(16);
+
+		setField(configManager, "m_sampleRate", 0d);
+		setField(idFactory, "m_idPrefix", "test-7f000001-");
+		setField(sender, "clientConfigManager", configManager);
+		setField(sender, "messageIdFactory", idFactory);
+		setField(sender, "m_queue", queue);
+		setField(sender, "m_tailSampler", new TailSampler(configManager, 1000, 16));
+
+		MessageTree root = createTree(null, "error");
+
+		sender.send(root);
+
+		Assertions.assertNotNull(root.getMessageId());
+
+		MessageTree firstChild = createTree(root.getMessageId(), Transaction.SUCCESS);
+		MessageTree secondChild = createTree(root.getMessageId(), Transaction.SUCCESS);
+		MessageTree unrelated = createTree(null, Transaction.SUCCESS);
+
+		sender.send(firstChild);
+		sender.send(unrelated);
+		sender.send(secondChild);
+
+		Assertions.assertEquals(1, queue.size());
+
+		sender.releaseHeldTrees(Long.MAX_VALUE);
+
+		List<MessageTree> sent = new ArrayList<MessageTree>();
+
+		queue.drainTo(sent, 16);
+
+		Assertions.assertEquals(3, sent.size());
+		Assertions.assertSame(root, sent.get(0));
+		Assertions.assertSame(firstChild, sent.get(1));
+		Assertions.assertSame(secondChild, sent.get(2));
+	}
+
+	@Test
+	void keepsTreesOfFailedTrace() {
+		TailSampler sampler = new TailSampler(null, 1000, 16);
+		MessageTree child = createTree("root", Transaction.SUCCESS);
+		MessageTree other = createTree(null, Transaction.SUCCESS);
+		MessageTree failed = createTree(null, "error");
+
+		((DefaultMessageTree) failed).setMessageId("root");
+
+		Assertions.assertFalse(sampler.isInteresting(child));
+		Assertions.assertTrue(sampler.hold(child));
+		Assertions.assertTrue(sampler.hold(other));
+		Assertions.assertTrue(sampler.isInteresting(failed));
+
+		sampler.markKept(failed);
+
+		Assertions.assertNull(sampler.poll(0));
+		Assertions.assertSame(child, sampler.poll(Long.MAX_VALUE));
+		Assertions.assertTrue(sampler.isKept(child));
+		Assertions.assertSame(other, sampler.poll(Long.MAX_VALUE));
+		Assertions.assertFalse(sampler.isKept(other));
+		Assertions.assertNull(sampler.poll(Long.MAX_VALUE));
+	}
+
+	@Test
+	void releasesOldestWhenFull() {
+		TailSampler sampler = new TailSampler(null, 1000, 2);
+		MessageTree first = createTree(null, Transaction.SUCCESS);
+		MessageTree second = createTree(null, Transaction.SUCCESS);
+		MessageTree third = createTree(null, Transaction.SUCCESS);
+
+		Assertions.assertTrue(sampler.hold(first));
+		Assertions.assertTrue(sampler.hold(second));
+		Assertions.assertNull(sampler.poll(0));
+		Assertions.assertTrue(sampler.hold(third));
+		Assertions.assertSame(first, sampler.poll(0));
+		Assertions.assertNull(sampler.poll(0));
+		Assertions.assertSame(second, sampler.poll(1000));
+		Assertions.assertSame(third, sampler.poll(1000));
+		Assertions.assertNull(sampler.poll(1000));
+	}
+
+	@Test
+	void rejectsHoldWhenHandOffIsFull() {
+		TailSampler sampler = new TailSampler(null, 1000, 2);
+
+		Assertions.assertTrue(sampler.hold(createTree(null, Transaction.SUCCESS)));
+		Assertions.assertTrue(sampler.hold(createTree(null, Transaction.SUCCESS)));
+		Assertions.assertFalse(sampler.hold(createTree(null, Transaction.SUCCESS)));
+	}
+}
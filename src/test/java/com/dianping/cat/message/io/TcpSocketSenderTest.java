@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2011-2018, Meituan Dianping. All Rights Reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dianping.cat.message.io;
+
+import com.dianping.cat.configuration.DefaultClientConfigManager;
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.internal.DefaultEvent;
+import com.dianping.cat.message.internal.DefaultTransaction;
+import com.dianping.cat.message.internal.MessageIdFactory;
+import com.dianping.cat.message.spi.MessageCodec;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.codec.NativeMessageCodec;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+class TcpSocketSenderTest {
+
+	@TempDir
+	File m_dir;
+
+	private static void setField(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	private MessageTree createTree(int index, String name) {
+		DefaultMessageTree tree = createRootTree(name);
+
+		tree.setMessageId("test", index);
+		return tree;
+	}
+
+	private DefaultMessageTree createRootTree(String name) {
+		DefaultMessageTree tree = new DefaultMessageTree();
+		DefaultEvent event = new DefaultEvent("Test", name);
+
+		event.setStatus(Message.SUCCESS);
+		event.setCompleted(true);
+		tree.setDomain("test");
+		tree.setHostName("localhost");
+		tree.setIpAddress("127.0.0.1");
+		tree.setMessage(event);
+		return tree;
+	}
+
+	private static int drainOutbound(EmbeddedChannel channel) {
+		int written = 0;
+		Object buf;
+
+		while ((buf = channel.readOutbound()) != null) {
+			ReferenceCountUtil.release(buf);
+			written++;
+		}
+		return written;
+	}
+
+	@Test
+	void brokenTreeDoesNotDropTheBatch() throws Exception {
+		TcpSocketSender sender = new TcpSocketSender();
+		RingBufferMessageQueue queue = new RingBufferMessageQueue(16);
+		EmbeddedChannel channel = new EmbeddedChannel();
+		final NativeMessageCodec codec = new NativeMessageCodec();
+		Map<Channel, MessageCodec> codecs = new IdentityHashMap<Channel, MessageCodec>();
+
+		codecs.put(channel, new MessageCodec() {
+			@Override
+			public MessageTree decode(ByteBuf buf) {
+				return codec.decode(buf);
+			}
+
+			@Override
+			public ByteBuf encode(MessageTree tree) {
+				if ("broken".equals(tree.getMessage().getName())) {
+					throw new IllegalStateException("broken tree");
+				}
+				return codec.encode(tree);
+			}
+
+			@Override
+			public void reset() {
+				codec.reset();
+			}
+		});
+		setField(sender, "m_codecs", codecs);
+		setField(sender, "m_queue", queue);
+
+		for (int i = 0; i < 5; i++) {
+			queue.offer(createTree(i, i == 2 ? "broken" : "ok"));
+		}
+
+		Assertions.assertEquals(5, sender.sendBatch(Collections.<Channel>singletonList(channel)));
+		Assertions.assertEquals(0, queue.size());
+		Assertions.assertEquals(4, drainOutbound(channel));
+	}
+
+	@Test
+	void hashShardsRootTreesWithoutPreassignedIds() throws Exception {
+		TcpSocketSender sender = new TcpSocketSender();
+		RingBufferMessageQueue queue = new RingBufferMessageQueue(16);
+		MessageIdFactory idFactory = new MessageIdFactory();
+		EmbeddedChannel first = new EmbeddedChannel();
+		EmbeddedChannel second = new EmbeddedChannel();
+		List<MessageTree> trees = new ArrayList<MessageTree>();
+
+		setField(idFactory, "m_idPrefix", "test-7f000001-480000-");
+		setField(sender, "messageIdFactory", idFactory);
+		setField(sender, "m_queue", queue);
+		setField(sender, "m_channelSelector", new HashChannelSelector());
+
+		for (int i = 0; i < 8; i++) {
+			MessageTree tree = createRootTree("ok"); // root trees get their id on the sender thread
+
+			trees.add(tree);
+			queue.offer(tree);
+		}
+
+		Assertions.assertEquals(8, sender.sendBatch(Arrays.<Channel>asList(first, second)));
+
+		for (MessageTree tree : trees) {
+			Assertions.assertNotNull(tree.getMessageId());
+		}
+		Assertions.assertEquals(8, drainOutbound(first) + drainOutbound(second));
+	}
+
+	@Test
+	void overflowIsSpilledBySenderThread() throws Exception {
+		TcpSocketSender sender = new TcpSocketSender();
+		DiskSpillQueue spillQueue = new DiskSpillQueue(m_dir, 1024 * 1024L);
+
+		Assertions.assertTrue(spillQueue.initialize());
+		setField(sender, "clientConfigManager", new DefaultClientConfigManager());
+		setField(sender, "m_queue", new RingBufferMessageQueue(2));
+		setField(sender, "m_spillQueue", spillQueue);
+
+		for (int i = 0; i < 5; i++) {
+			MessageTree tree = createTree(i, "ok");
+			DefaultTransaction transaction = new DefaultTransaction("URL", "/test");
+
+			transaction.setStatus(Message.SUCCESS);
+			transaction.setCompleted(true);
+			tree.setMessage(transaction); // events are atomic trees and go to the atomic queue
+			sender.send(tree);
+		}
+
+		Assertions.assertTrue(spillQueue.isEmpty());
+
+		sender.spillHandedOff();
+
+		int spilled = 0;
+		ByteBuf buf;
+
+		while ((buf = spillQueue.poll(ByteBufAllocator.DEFAULT)) != null) {
+			buf.release();
+			spilled++;
+		}
+		Assertions.assertEquals(3, spilled);
+	}
+}
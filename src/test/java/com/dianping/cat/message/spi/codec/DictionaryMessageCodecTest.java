@@ -0,0 +1,175 @@
+package com.dianping.cat.message.spi.codec;
+
+import com.dianping.cat.message.internal.DefaultEvent;
+import com.dianping.cat.message.internal.DefaultTransaction;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.internal.DefaultMessageTree;
+import io.netty.buffer.ByteBuf;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class DictionaryMessageCodecTest {
+
+	private MessageTree buildTree(int index) {
+		DefaultMessageTree tree = new DefaultMessageTree();
+
+		tree.setDomain("cat");
+		tree.setHostName("localhost");
+		tree.setIpAddress("127.0.0.1");
+		tree.setThreadGroupName("main");
+		tree.setThreadId("1");
+		tree.setThreadName("http-exec-1");
+		tree.setMessageId("cat-7f000001-480000-" + index);
+		tree.setParentMessageId("parent");
+		tree.setRootMessageId("cat-7f000001-480000-0");
+		tree.setSessionToken("session");
+
+		DefaultTransaction t = new DefaultTransaction("URL", "/order/list");
+
+		t.addData("page", index);
+		t.setStatus("0");
+		t.setDurationInMicros(1234);
+
+		for (int i = 0; i < 3; i++) {
+			DefaultEvent e = new DefaultEvent("SQL", "select");
+
+			e.setTimestamp(t.getTimestamp() + i - 1);
+			e.addData("select * from orders where id = " + i);
+			e.setStatus("0");
+			t.addChild(e);
+		}
+
+		tree.setMessage(t);
+		return tree;
+	}
+
+	@Test
+	void roundTrip() {
+		DictionaryMessageCodec encoder = new DictionaryMessageCodec();
+		DictionaryMessageCodec decoder = new DictionaryMessageCodec();
+
+		for (int i = 0; i < 3; i++) {
+			MessageTree tree = buildTree(i);
+			ByteBuf buf = encoder.encode(tree);
+
+			try {
+				MessageTree decoded = decoder.decode(buf);
+
+				Assertions.assertEquals(tree.toString(), decoded.toString());
+				Assertions.assertEquals(tree.getMessageId(), decoded.getMessageId());
+			} finally {
+				buf.release();
+			}
+		}
+	}
+
+	@Test
+	void repeatedTreesAreSmallerThanNT1() {
+		DictionaryMessageCodec codec = new DictionaryMessageCodec();
+		NativeMessageCodec nt1 = new NativeMessageCodec();
+		ByteBuf first = codec.encode(buildTree(0));
+		ByteBuf second = codec.encode(buildTree(1));
+		ByteBuf native1 = nt1.encode(buildTree(1));
+
+		try {
+			Assertions.assertTrue(second.readableBytes() < first.readableBytes());
+			Assertions.assertTrue(second.readableBytes() < native1.readableBytes());
+		} finally {
+			first.release();
+			second.release();
+			native1.release();
+		}
+	}
+
+	@Test
+	void resetStartsNewDictionary() {
+		DictionaryMessageCodec encoder = new DictionaryMessageCodec();
+
+		encoder.encode(buildTree(0)).release();
+		encoder.reset();
+		Assertions.assertEquals(0, encoder.getDictionarySize());
+
+		DictionaryMessageCodec decoder = new DictionaryMessageCodec();
+		MessageTree tree = buildTree(1);
+		ByteBuf buf = encoder.encode(tree);
+
+		try {
+			Assertions.assertEquals(tree.toString(), decoder.decode(buf).toString());
+		} finally {
+			buf.release();
+		}
+	}
+	private MessageTree buildTree(int index, String name) {
+		MessageTree tree = buildTree(index);
+		DefaultTransaction t = (DefaultTransaction) tree.getMessage();
+		DefaultTransaction named = new DefaultTransaction(t.getType(), name);
+
+		named.setTimestamp(t.getTimestamp());
+		named.setStatus(t.getStatus());
+		named.setDurationInMicros(t.getDurationInMicros());
+		tree.setMessage(named);
+		return tree;
+	}
+
+	private void assertRoundTrip(DictionaryMessageCodec encoder, DictionaryMessageCodec decoder, MessageTree tree) {
+		ByteBuf buf = encoder.encode(tree);
+
+		try {
+			Assertions.assertEquals(tree.toString(), decoder.decode(buf).toString());
+		} finally {
+			buf.release();
+		}
+	}
+
+	@Test
+	void fullDictionaryStartsOverOnBothSides() {
+		DictionaryMessageCodec encoder = new DictionaryMessageCodec();
+		DictionaryMessageCodec decoder = new DictionaryMessageCodec();
+
+		for (int i = 0; i < 10000; i++) {
+			assertRoundTrip(encoder, decoder, buildTree(i, "/page/" + i));
+		}
+
+		Assertions.assertEquals(1, encoder.getAndClearResets());
+		Assertions.assertEquals(0, encoder.getAndClearResets());
+		Assertions.assertTrue(encoder.getDictionaryUsage() < 100);
+
+		// strings of the old dictionary are defined again
+		assertRoundTrip(encoder, decoder, buildTree(0, "/page/0"));
+	}
+
+	@Test
+	void failedTreeKeepsTheResetForTheNextOne() {
+		DictionaryMessageCodec encoder = new DictionaryMessageCodec();
+		DictionaryMessageCodec decoder = new DictionaryMessageCodec();
+		int index = 0;
+
+		while (encoder.getDictionaryUsage() < 100) {
+			assertRoundTrip(encoder, decoder, buildTree(index, "/page/" + index));
+			index++;
+		}
+
+		MessageTree broken = buildTree(index, "/broken");
+
+		((DefaultTransaction) broken.getMessage()).addChild(new DefaultEvent("SQL", "broken") {
+			@Override
+			public String getStatus() {
+				throw new IllegalStateException("broken event");
+			}
+		});
+
+		try {
+			encoder.encode(broken);
+			Assertions.fail("broken tree is encoded");
+		} catch (IllegalStateException e) {
+			// expected, the peer never sees this tree
+		}
+
+		MessageTree next = buildTree(index + 1, "/page/" + index);
+
+		// the host name refers to the domain, so entries are defined in a different order than in the old dictionary
+		next.setHostName(next.getDomain());
+		assertRoundTrip(encoder, decoder, next);
+		Assertions.assertEquals(1, encoder.getAndClearResets());
+	}
+}
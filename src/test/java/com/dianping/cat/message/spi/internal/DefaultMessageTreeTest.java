@@ -0,0 +1,112 @@
+package com.dianping.cat.message.spi.internal;
+
+import com.dianping.cat.message.Message;
+import com.dianping.cat.message.internal.DefaultEvent;
+import com.dianping.cat.message.spi.MessageTree;
+import com.dianping.cat.message.spi.codec.NativeMessageCodec;
+import io.netty.buffer.ByteBuf;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+class DefaultMessageTreeTest {
+
+	private static Object getField(DefaultMessageTree tree, String name) throws Exception {
+		Field field = DefaultMessageTree.class.getDeclaredField(name);
+
+		field.setAccessible(true);
+		return field.get(tree);
+	}
+
+	@Test
+	void threadIsResolvedOnceWhenEncoded() throws Exception {
+		Thread thread = Thread.currentThread();
+		String name = thread.getName();
+		DefaultMessageTree tree = new DefaultMessageTree();
+		DefaultEvent event = new DefaultEvent("Cache", "get");
+
+		event.setStatus(Message.SUCCESS);
+		event.complete();
+		tree.setDomain("cat");
+		tree.setHostName("localhost");
+		tree.setIpAddress("127.0.0.1");
+		tree.setMessageId("cat-7f000001-480000-0");
+		tree.setMessage(event);
+		tree.setThread(thread);
+
+		// nothing is read from the thread until the tree is flushed
+		Assertions.assertSame(thread, getField(tree, "m_thread"));
+		Assertions.assertNull(getField(tree, "m_threadName"));
+		Assertions.assertNull(getField(tree, "m_threadId"));
+		Assertions.assertNull(getField(tree, "m_threadGroupName"));
+
+		ByteBuf buf = new NativeMessageCodec().encode(tree);
+
+		buf.release();
+		Assertions.assertNull(getField(tree, "m_thread"));
+		Assertions.assertEquals(name, getField(tree, "m_threadName"));
+		Assertions.assertEquals(String.valueOf(thread.getId()), getField(tree, "m_threadId"));
+		Assertions.assertEquals(thread.getThreadGroup().getName(), getField(tree, "m_threadGroupName"));
+
+		try {
+			thread.setName(name + "-renamed");
+
+			// resolved values are kept, not read from the thread again
+			Assertions.assertEquals(name, tree.getThreadName());
+		} finally {
+			thread.setName(name);
+		}
+	}
+
+	@Test
+	void threadIsResolvedWhenCopied() throws Exception {
+		final int threads = 10000;
+		final CountDownLatch latch = new CountDownLatch(threads);
+		final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread("short-lived-" + i) {
+				@Override
+				public void run() {
+					try {
+						DefaultMessageTree tree = new DefaultMessageTree();
+
+						tree.setThread(this);
+
+						MessageTree copied = tree.copy();
+
+						if (!getName().equals(copied.getThreadName()) || !String.valueOf(getId()).equals(copied.getThreadId())
+										|| !getThreadGroup().getName().equals(copied.getThreadGroupName())) {
+							errors.add(getName());
+						}
+					} finally {
+						latch.countDown();
+					}
+				}
+			};
+
+			thread.start();
+		}
+
+		latch.await();
+		Assertions.assertTrue(errors.isEmpty(), "wrong thread info: " + errors);
+	}
+
+	@Test
+	void explicitValueWins() throws Exception {
+		Thread thread = new Thread("worker");
+		DefaultMessageTree tree = new DefaultMessageTree();
+
+		thread.start();
+		thread.join();
+		tree.setThread(thread);
+		tree.setThreadName("renamed");
+
+		Assertions.assertEquals("renamed", tree.getThreadName());
+		Assertions.assertEquals(String.valueOf(thread.getId()), tree.getThreadId());
+		Assertions.assertNull(tree.getThreadGroupName()); // a terminated thread has no group
+	}
+}